@@ -6,6 +6,7 @@ import com.google.gson.InstanceCreator;
 import com.google.gson.JsonParseException;
 import com.google.gson.annotations.Expose;
 import link.infra.jumploader.resolution.EnvironmentDiscoverer;
+import link.infra.jumploader.resolution.download.DurabilityMode;
 import link.infra.jumploader.resolution.sources.SourcesRegistry;
 import link.infra.jumploader.resolution.ui.messages.ErrorMessages;
 import link.infra.jumploader.util.Side;
@@ -17,7 +18,10 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @SuppressWarnings("CanBeFinal")
 public class ConfigFile {
@@ -56,6 +60,75 @@ public class ConfigFile {
 	@Expose
 	public String pinFabricLoaderVersion = null;
 
+	// The maximum number of files downloaded at once - the number of downloads adapts to the measured throughput, up
+	// to this limit
+	@Expose
+	public int maxConcurrentDownloads = 12;
+	// The maximum number of connections to each host, for both metadata requests and downloads. Hosts that aren't listed
+	// are limited to 6 connections
+	@Expose
+	public Map<String, Integer> maxConnectionsPerHost = getDefaultConnectionLimits();
+	// How downloaded files are synced to disk: "off" doesn't sync, "batched" syncs all the files together once they are
+	// downloaded, and "perFile" syncs each file as soon as it is downloaded
+	@Expose
+	public DurabilityMode downloadDurability = DurabilityMode.BATCHED;
+	// The number of times each failed download is retried, and the total number of retries for all downloads
+	@Expose
+	public int maxRetriesPerDownload = 3;
+	@Expose
+	public int downloadRetryBudget = 20;
+	// Mirrors to retry failed downloads from, in order. Each key is a base URL, and files under it are downloaded from the
+	// same path under each mirror's base URL
+	@Expose
+	public Map<String, List<String>> downloadMirrors = getDefaultMirrors();
+	// Send a second request for downloads that are much slower than the others, to a mirror if there is one, and keep
+	// whichever completes first. A download is slow if it's time to first byte is hedgeSlownessFactor times longer than
+	// the median of the other downloads, or it's throughput is hedgeSlownessFactor times lower.
+	@Expose
+	public boolean hedgeSlowDownloads = false;
+	@Expose
+	public double hedgeSlownessFactor = 4;
+	// Timeouts for connecting to servers, and for each read from a connection, in seconds - 0 disables the timeout
+	@Expose
+	public int connectTimeoutSeconds = 15;
+	@Expose
+	public int readTimeoutSeconds = 30;
+	// Downloads that don't receive any data for this long are restarted, or 0 to never restart them
+	@Expose
+	public int downloadStallTimeoutSeconds = 30;
+	// Sources that haven't resolved their metadata after this long use cached metadata instead, if there is any, otherwise
+	// the launch fails. Set to 0 to wait indefinitely.
+	@Expose
+	public int resolutionDeadlineSeconds = 120;
+	// The maximum download bandwidth in bytes per second, or 0 for no limit. Background downloads (e.g. hedged requests)
+	// are also limited by maxBackgroundDownloadBytesPerSecond. Short bursts of up to 2 seconds of bandwidth are allowed.
+	@Expose
+	public long maxDownloadBytesPerSecond = 0;
+	@Expose
+	public long maxBackgroundDownloadBytesPerSecond = 0;
+	// Cache metadata responses in .jumploader/httpcache, and revalidate them with conditional requests
+	@Expose
+	public boolean useHttpCache = true;
+	// Launch using the last cached metadata even if it is out of date, and refresh it in the background once resolution
+	// completes - the refreshed metadata is used from the next launch. Metadata is only refreshed once it is older than
+	// metadataMaxAgeHours.
+	@Expose
+	public boolean staleWhileRevalidate = false;
+	@Expose
+	public int metadataMaxAgeHours = 24;
+	// Launch using only cached metadata and jars that have already been downloaded, without making any requests
+	@Expose
+	public boolean offlineMode = false;
+	// If resolution fails (e.g. the network is down), try to launch as in offline mode instead
+	@Expose
+	public boolean offlineFallback = true;
+	// Write the resolved jars of each source to jumploader.lock.json, next to this file, and use them instead of resolving
+	// metadata while they are still valid - a modpack can ship the lockfile so fresh installs make no metadata requests.
+	// This locks the versions in the lockfile (e.g. the Fabric loader version, even if it isn't pinned above) until the
+	// lockfile is deleted, so they are never updated. Locked jars are only downloaded from the hosts the source uses.
+	@Expose
+	public boolean useLockfile = false;
+
 	// Legacy config file detection
 	@Expose(serialize = false)
 	public AutoconfOptions autoconfig = null;
@@ -73,6 +146,21 @@ public class ConfigFile {
 		public String gameVersion = null;
 	}
 
+	private static Map<String, Integer> getDefaultConnectionLimits() {
+		Map<String, Integer> limits = new LinkedHashMap<>();
+		limits.put("libraries.minecraft.net", 8);
+		limits.put("maven.fabricmc.net", 6);
+		limits.put("launcher.mojang.com", 4);
+		return limits;
+	}
+
+	private static Map<String, List<String>> getDefaultMirrors() {
+		Map<String, List<String>> mirrors = new LinkedHashMap<>();
+		mirrors.put("https://libraries.minecraft.net/", new ArrayList<>());
+		mirrors.put("https://maven.fabricmc.net/", new ArrayList<>());
+		return mirrors;
+	}
+
 	private ConfigFile(Path destFile) {
 		this.destFile = destFile;
 	}
@@ -118,7 +206,7 @@ public class ConfigFile {
 		}
 	}
 
-	public void save() throws IOException {
+	public synchronized void save() throws IOException {
 		Gson gson = new GsonBuilder().setPrettyPrinting().serializeNulls()
 			// Normal JsonAdapter annot doesn't serialise nulls properly
 			.registerTypeAdapter(Side.class, new Side.Adapter())
@@ -12,11 +12,17 @@ import link.infra.jumploader.launch.arguments.ParsedArguments;
 import link.infra.jumploader.launch.classpath.ClasspathReplacer;
 import link.infra.jumploader.resolution.EnvironmentDiscoverer;
 import link.infra.jumploader.resolution.ResolutionProcessor;
+import link.infra.jumploader.resolution.ResolutionResult;
 import link.infra.jumploader.resolution.download.PreDownloadCheck;
 import link.infra.jumploader.resolution.sources.MetadataResolutionResult;
 import link.infra.jumploader.resolution.sources.ResolutionContext;
 import link.infra.jumploader.resolution.sources.ResolutionContextImpl;
 import link.infra.jumploader.resolution.ui.messages.ErrorMessages;
+import link.infra.jumploader.util.BandwidthLimiter;
+import link.infra.jumploader.util.HostConnectionLimiter;
+import link.infra.jumploader.util.HttpCache;
+import link.infra.jumploader.util.RequestUtils;
+import link.infra.jumploader.util.TransportRequest;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -91,21 +97,23 @@ public class Jumploader implements ITransformationService {
 		if (config.disableUI) {
 			ErrorMessages.disableGUI();
 		}
+		HostConnectionLimiter.setHostLimits(config.maxConnectionsPerHost);
+		BandwidthLimiter.setLimits(config.maxDownloadBytesPerSecond, config.maxBackgroundDownloadBytesPerSecond);
+		TransportRequest.setDefaultTimeouts(config.connectTimeoutSeconds * 1000, config.readTimeoutSeconds * 1000);
+		if (config.useHttpCache) {
+			RequestUtils.setHttpCache(new HttpCache(argsParsed.gameDir.resolve(".jumploader").resolve("httpcache")));
+		}
 		LOGGER.info("Configuration successfully loaded with sources: [" + String.join(", ", config.sources) + "] Resolving JARs to jumpload...");
 
 		ResolutionContext resCtx = new ResolutionContextImpl(config, environmentDiscoverer, argsParsed);
-		// Resolve metadata for jars to download
-		List<MetadataResolutionResult> metadataResolutionResults;
-		try {
-			metadataResolutionResults = ResolutionProcessor.processMetadata(resCtx);
-		} catch (IOException e) {
-			ErrorMessages.showFatalMessage("Jumploader failed to load", "Failed to resolve metadata: " + e.getClass().getTypeName() + ": " + e.getLocalizedMessage(), LOGGER);
-			throw new RuntimeException("Failed to resolve metadata", e);
+		// Connect to the hosts used by the sources early, unless no requests should be made at all
+		if (!config.offlineMode) {
+			ResolutionProcessor.prewarmConnections(resCtx);
 		}
-		// Download and resolve URLs for jars
-		List<URL> loadUrls;
+		// Resolve metadata and download jars - downloads start as soon as each source has resolved it's metadata
+		ResolutionResult resolutionResult;
 		try {
-			loadUrls = ResolutionProcessor.resolveJars(metadataResolutionResults, resCtx);
+			resolutionResult = ResolutionProcessor.resolve(resCtx);
 		} catch (IOException e) {
 			ErrorMessages.showFatalMessage("Jumploader failed to load", "Failed to resolve jars: " + e.getClass().getTypeName() + ": " + e.getLocalizedMessage(), LOGGER);
 			throw new RuntimeException("Failed to resolve jars", e);
@@ -113,6 +121,8 @@ public class Jumploader implements ITransformationService {
 			ErrorMessages.showFatalMessage("Jumploader failed to load", "Failed to download jar: " + e.getMessage(), LOGGER);
 			throw new RuntimeException("Failed to download jar", e);
 		}
+		List<MetadataResolutionResult> metadataResolutionResults = resolutionResult.metadata;
+		List<URL> loadUrls = resolutionResult.urls;
 
 		// Replace the classpath URLs
 		try {
@@ -0,0 +1,190 @@
+package link.infra.jumploader.resolution;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import link.infra.jumploader.resolution.download.verification.SHA1HashVerifier;
+import link.infra.jumploader.resolution.sources.MetadataCacheHelper;
+import link.infra.jumploader.resolution.sources.MetadataResolutionResult;
+import link.infra.jumploader.resolution.sources.ResolutionContext;
+import link.infra.jumploader.resolution.sources.ResolvableJarSource;
+import link.infra.jumploader.resolution.sources.SourcesRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores the resolved jars and main class of each source, so launches can skip metadata resolution and only download
+ * the jars. The lockfile can be shipped with a modpack, so fresh installs don't request any metadata. Each source is
+ * stored with it's invalidation key, and is only used if the key is still valid (e.g. for the same game version).
+ */
+public class Lockfile {
+	private static final Logger LOGGER = LogManager.getLogger();
+	private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+	private static final int VERSION = 1;
+
+	private static class LockedJar {
+		private String url;
+		// Relative to the game directory, if the jar is stored inside it
+		private String path;
+		private String sha1;
+		private long size = -1;
+		private String friendlyName;
+	}
+
+	private static class LockedSource {
+		private JsonElement invalidationKey;
+		private String mainClass;
+		private List<LockedJar> jars = new ArrayList<>();
+	}
+
+	private int version = VERSION;
+	private Map<String, LockedSource> sources = new LinkedHashMap<>();
+
+	public static Path getPath(ResolutionContext ctx) {
+		return ctx.getEnvironment().configFile.resolveSibling("jumploader.lock.json");
+	}
+
+	/**
+	 * Reads the lockfile, or returns null if there is no usable lockfile
+	 */
+	public static Lockfile read(ResolutionContext ctx) {
+		Path path = getPath(ctx);
+		Lockfile lockfile;
+		try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			lockfile = GSON.fromJson(reader, Lockfile.class);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException | JsonParseException e) {
+			LOGGER.warn("Failed to read lockfile " + path + ", resolving jars from metadata", e);
+			return null;
+		}
+		if (lockfile == null || lockfile.version != VERSION || lockfile.sources == null) {
+			LOGGER.warn("Lockfile " + path + " is empty or from an incompatible version, resolving jars from metadata");
+			return null;
+		}
+		return lockfile;
+	}
+
+	/**
+	 * Gets the locked result of a source, or null if the source isn't in the lockfile, it's invalidation key is no
+	 * longer valid or it has jars that aren't downloaded from the hosts the source is allowed to use
+	 */
+	public MetadataResolutionResult getResult(String sourceId, ResolutionContext ctx) throws IOException {
+		if (!isLocked(sourceId, ctx)) {
+			return null;
+		}
+		LockedSource lockedSource = sources.get(sourceId);
+		Set<String> allowedHosts = SourcesRegistry.getSource(sourceId).getAllowedDownloadHosts();
+		Path gameDir = ctx.getArguments().gameDir;
+		List<ResolvableJar> jars = new ArrayList<>();
+		for (LockedJar jar : lockedSource.jars) {
+			if (jar.path == null) {
+				throw new IOException("Invalid lockfile entry for source " + sourceId + ": no path for " + jar.url);
+			}
+			Path path = gameDir.resolve(jar.path);
+			String friendlyName = jar.friendlyName != null ? jar.friendlyName : "Locked jar " + jar.path;
+			if (jar.url == null) {
+				jars.add(new ResolvableJar(path, friendlyName));
+			} else {
+				URL url = new URL(jar.url);
+				if (!"https".equals(url.getProtocol()) || !allowedHosts.contains(url.getHost().toLowerCase(Locale.ROOT))) {
+					LOGGER.warn("Lockfile entry for source " + sourceId + " downloads from " + jar.url + ", which the source isn't allowed to use - resolving it from metadata");
+					return null;
+				}
+				jars.add(new ResolvableJar(url, path,
+					jar.sha1 != null ? SHA1HashVerifier.verifier(jar.sha1, jar.url) : null, jar.size, friendlyName));
+			}
+		}
+		return new MetadataResolutionResult(jars, lockedSource.mainClass);
+	}
+
+	/**
+	 * Returns true if the source is in the lockfile, and it's invalidation key is usable for the current configuration
+	 */
+	public boolean isLocked(String sourceId, ResolutionContext ctx) {
+		ResolvableJarSource<?> source = SourcesRegistry.getSource(sourceId);
+		LockedSource lockedSource = sources.get(sourceId);
+		return source != null && source.isLockable() && lockedSource != null && isValid(source, lockedSource, ctx);
+	}
+
+	private static <T extends MetadataCacheHelper.InvalidationKey<T>> boolean isValid(ResolvableJarSource<T> source, LockedSource lockedSource, ResolutionContext ctx) {
+		if (lockedSource.invalidationKey == null) {
+			return false;
+		}
+		T lockedKey;
+		try {
+			lockedKey = GSON.fromJson(lockedSource.invalidationKey, source.getInvalidationKeyType());
+		} catch (JsonParseException e) {
+			return false;
+		}
+		if (lockedKey == null) {
+			return false;
+		}
+		return source.getInvalidationKey(ctx).isUsableFromLockfile(lockedKey);
+	}
+
+	/**
+	 * Creates a lockfile from the results of each source, in the same order as the given source IDs. Sources that aren't
+	 * lockable are skipped.
+	 */
+	public static Lockfile create(ResolutionContext ctx, List<String> sourceIds, List<MetadataResolutionResult> results) {
+		Lockfile lockfile = new Lockfile();
+		Path gameDir = ctx.getArguments().gameDir.toAbsolutePath();
+		for (int i = 0; i < sourceIds.size(); i++) {
+			ResolvableJarSource<?> source = SourcesRegistry.getSource(sourceIds.get(i));
+			if (source == null || !source.isLockable()) {
+				continue;
+			}
+			LockedSource lockedSource = new LockedSource();
+			// The key is retrieved after resolution, as resolution can update the configuration (e.g. pinning versions)
+			lockedSource.invalidationKey = GSON.toJsonTree(source.getInvalidationKey(ctx));
+			lockedSource.mainClass = results.get(i).mainClass;
+			for (ResolvableJar jar : results.get(i).jars) {
+				LockedJar lockedJar = new LockedJar();
+				lockedJar.url = jar.url != null ? jar.url.toString() : null;
+				Path path = jar.path.toAbsolutePath();
+				lockedJar.path = path.startsWith(gameDir) ? gameDir.relativize(path).toString().replace(File.separatorChar, '/') : path.toString();
+				lockedJar.sha1 = jar.hashVerifier != null ? jar.hashVerifier.getSha1Hash() : null;
+				lockedJar.size = jar.expectedSize;
+				lockedJar.friendlyName = jar.friendlyName;
+				lockedSource.jars.add(lockedJar);
+			}
+			lockfile.sources.put(sourceIds.get(i), lockedSource);
+		}
+		return lockfile;
+	}
+
+	/**
+	 * Writes the lockfile to a temporary file, which is then moved into place
+	 */
+	public void save(Path path) throws IOException {
+		Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+			GSON.toJson(this, writer);
+		}
+		try {
+			Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
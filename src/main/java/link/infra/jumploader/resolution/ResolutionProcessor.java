@@ -1,237 +1,451 @@
 package link.infra.jumploader.resolution;
 
-import link.infra.jumploader.Jumploader;
-import link.infra.jumploader.resolution.download.BytesReportingInputStream;
+import link.infra.jumploader.resolution.download.ChannelTransfer;
+import link.infra.jumploader.resolution.download.DiskSpaceCheck;
 import link.infra.jumploader.resolution.download.DownloadWorkerManager;
+import link.infra.jumploader.resolution.download.FileCommitter;
+import link.infra.jumploader.resolution.download.HedgePolicy;
+import link.infra.jumploader.resolution.download.JarDownloadWorker;
+import link.infra.jumploader.resolution.download.LoggingDownloadListener;
 import link.infra.jumploader.resolution.download.PreDownloadCheck;
+import link.infra.jumploader.resolution.download.RetryPolicy;
+import link.infra.jumploader.resolution.download.verification.HashVerifier;
 import link.infra.jumploader.resolution.download.verification.InvalidHashException;
 import link.infra.jumploader.resolution.sources.*;
 import link.infra.jumploader.resolution.ui.GUIManager;
 import link.infra.jumploader.resolution.ui.messages.ErrorMessages;
+import link.infra.jumploader.util.RequestUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
-import java.net.URLConnection;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
 
+/**
+ * Resolves jars from all the configured sources. Each source resolves it's metadata on it's own thread, and queues
+ * downloads for it's jars as soon as they are known, so downloads from one source overlap with metadata resolution
+ * of the other sources.
+ */
 public class ResolutionProcessor {
 	private static final Logger LOGGER = LogManager.getLogger();
 
-	public static List<MetadataResolutionResult> processMetadata(ResolutionContext ctx) throws IOException {
-		List<MetadataResolutionResult> results = new ArrayList<>();
-		MetadataCacheHelper cacheHelper = new MetadataCacheHelper(ctx.getArguments());
-		for (String sourceId : ctx.getConfigFile().sources) {
-			ResolvableJarSource<? extends MetadataCacheHelper.InvalidationKey<?>> source = SourcesRegistry.getSource(sourceId);
-			results.add(doMetaResolve(sourceId, source, cacheHelper, ctx));
+	public static ResolutionResult resolve(ResolutionContext ctx) throws IOException, PreDownloadCheck.PreDownloadCheckException {
+		if (ctx.getConfigFile().offlineMode) {
+			LOGGER.info("Offline mode enabled, resolving jars from cached metadata");
+			return resolveOffline(ctx);
+		}
+		try {
+			return resolveOnline(ctx);
+		} catch (IOException e) {
+			if (!ctx.getConfigFile().offlineFallback) {
+				throw e;
+			}
+			LOGGER.warn("Failed to resolve jars, trying to launch from cached metadata instead", e);
+			try {
+				return resolveOffline(ctx);
+			} catch (IOException offlineException) {
+				e.addSuppressed(offlineException);
+				throw e;
+			}
 		}
-		return results;
 	}
 
-	private static <T extends MetadataCacheHelper.InvalidationKey<T>> MetadataResolutionResult doMetaResolve(String sourceId, ResolvableJarSource<T> source, MetadataCacheHelper cacheHelper, ResolutionContext ctx) throws IOException {
-		MetadataCacheHelper.MetadataCacheView view = cacheHelper.viewCache(sourceId, source.getInvalidationKey(ctx));
-		return source.resolve(view, ctx);
+	/**
+	 * Connects to the hosts used by the configured sources in the background, so the connections are ready once
+	 * resolution starts. Metadata hosts are skipped for sources in the lockfile, as their metadata isn't requested.
+	 */
+	public static void prewarmConnections(ResolutionContext ctx) {
+		Lockfile lockfile = ctx.getConfigFile().useLockfile ? Lockfile.read(ctx) : null;
+		List<URL> urls = new ArrayList<>();
+		try {
+			for (String sourceId : ctx.getConfigFile().sources) {
+				ResolvableJarSource<?> source = SourcesRegistry.getSource(sourceId);
+				if (source == null) {
+					continue;
+				}
+				if (lockfile == null || !lockfile.isLocked(sourceId, ctx)) {
+					urls.addAll(source.getMetadataPrewarmUrls());
+				}
+				urls.addAll(source.getDownloadPrewarmUrls());
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Failed to prewarm connections", e);
+			return;
+		}
+		RequestUtils.prewarmConnections(urls);
 	}
 
-	public static List<URL> resolveJars(List<MetadataResolutionResult> metadataResolutionResults, ResolutionContext ctx) throws IOException, PreDownloadCheck.PreDownloadCheckException {
+	/**
+	 * Resolves jars using only the cached metadata, without making any requests - every jar must already have been
+	 * downloaded
+	 */
+	private static ResolutionResult resolveOffline(ResolutionContext ctx) throws IOException {
+		MetadataCacheHelper cacheHelper = new MetadataCacheHelper(ctx.getArguments());
+		Lockfile lockfile = ctx.getConfigFile().useLockfile ? Lockfile.read(ctx) : null;
+		List<MetadataResolutionResult> metadataResults = new ArrayList<>();
 		List<URL> urls = new ArrayList<>();
-		List<ResolvableJar> downloadQueue = new ArrayList<>();
-
-		for (MetadataResolutionResult meta : metadataResolutionResults) {
+		for (String sourceId : ctx.getConfigFile().sources) {
+			MetadataResolutionResult meta = lockfile != null ? lockfile.getResult(sourceId, ctx) : null;
+			if (meta == null) {
+				meta = doOfflineMetaResolve(sourceId, SourcesRegistry.getSource(sourceId), cacheHelper, ctx);
+			}
 			for (ResolvableJar jar : meta.jars) {
-				// Add the URL
-				URL jarUrl = jar.path.toUri().toURL();
-				urls.add(jarUrl);
-				Path tmpPath = jar.path.resolveSibling(jar.path.getFileName() + ".tmp");
-				// First, check if the file already exists
-				if (Files.exists(jar.path)) {
-					// If it has no download source, we have succeeded!
-					if (jar.url == null) {
-						LOGGER.info("Found JAR: " + jarUrl);
-						continue;
-					}
+				if (!Files.exists(jar.path)) {
+					throw new IOException("Can't launch offline, " + jar.friendlyName + " hasn't been downloaded (" + jar.path + ")");
+				}
+				urls.add(jar.path.toUri().toURL());
+			}
+			metadataResults.add(meta);
+		}
+		return new ResolutionResult(metadataResults, urls);
+	}
 
-					// If the .tmp file exists, check the hash of the current file and check it is correct - if it is
-					// incorrect, we need to redownload, but if it is correct just delete the .tmp file
-					if (Files.exists(tmpPath)) {
-						// If .tmp exists and there is no hash verifier, redownload
-						if (jar.hashVerifier != null) {
-							boolean hashIsValid = true;
-							try (InputStream read = jar.hashVerifier.getVerifier(Files.newInputStream(jar.path))) {
-								// Read the stream to completion - using hashVerifier to check the hash
-								byte[] buf = new byte[2048];
-								while (true) {
-									// Skip doesn't work as it bypasses the hash verification
-									if (read.read(buf) < 0) {
-										break;
-									}
-								}
-							} catch (InvalidHashException ignored) {
-								hashIsValid = false;
-							}
-							if (hashIsValid) {
-								Files.delete(tmpPath);
-								LOGGER.info("Found JAR: " + jarUrl);
-								continue;
-							}
-						}
-					} else {
-						LOGGER.info("Found JAR: " + jarUrl);
-						continue;
+	private static ResolutionResult resolveOnline(ResolutionContext ctx) throws IOException, PreDownloadCheck.PreDownloadCheckException {
+		MetadataCacheHelper cacheHelper = new MetadataCacheHelper(ctx.getArguments());
+		List<String> sourceIds = ctx.getConfigFile().sources;
+		DownloadWorkerManager<URL> workerManager = new DownloadWorkerManager<>(ctx.getConfigFile().maxConcurrentDownloads,
+			TimeUnit.SECONDS.toMillis(ctx.getConfigFile().downloadStallTimeoutSeconds));
+		LoggingDownloadListener loggingListener = new LoggingDownloadListener(workerManager);
+		workerManager.addListener(loggingListener);
+		FileCommitter fileCommitter = new FileCommitter(ctx.getConfigFile().downloadDurability);
+		RetryPolicy retryPolicy = new RetryPolicy(ctx.getConfigFile().maxRetriesPerDownload, ctx.getConfigFile().downloadRetryBudget,
+			ctx.getConfigFile().downloadMirrors);
+		HedgePolicy hedgePolicy = ctx.getConfigFile().hedgeSlowDownloads ? new HedgePolicy(workerManager, ctx.getConfigFile().hedgeSlownessFactor) : null;
+		Lockfile lockfile = ctx.getConfigFile().useLockfile ? Lockfile.read(ctx) : null;
+		// Set if any source that could be locked was resolved from metadata, so the lockfile needs to be written
+		AtomicBoolean lockfileOutdated = new AtomicBoolean();
+
+		// Results are stored by source index, so they keep the configured order regardless of completion order
+		List<MetadataResolutionResult> metadataResults = new ArrayList<>(Collections.nCopies(sourceIds.size(), null));
+		List<List<URL>> sourceUrls = new ArrayList<>(Collections.nCopies(sourceIds.size(), null));
+
+		// Sources that haven't resolved by the deadline are resolved again from cached metadata, so the pool isn't fixed
+		// size - the original resolution may still be blocked
+		ExecutorService sourceExecutor = Executors.newCachedThreadPool();
+		CompletionService<Void> sourceCompletionService = new ExecutorCompletionService<>(sourceExecutor);
+		// Set by the first resolution of each source to complete, which is the only one that queues it's jars
+		List<AtomicBoolean> sourceResolved = new ArrayList<>();
+		List<CountDownLatch> sourceQueued = new ArrayList<>();
+		BiFunction<Integer, Boolean, Callable<Void>> createSourceTask = (index, useStaleMetadata) -> () -> {
+			String sourceId = sourceIds.get(index);
+			try {
+				ResolvableJarSource<? extends MetadataCacheHelper.InvalidationKey<?>> source = SourcesRegistry.getSource(sourceId);
+				// Locked sources skip metadata resolution entirely, so only their downloads run
+				MetadataResolutionResult meta = lockfile != null ? lockfile.getResult(sourceId, ctx) : null;
+				if (meta == null) {
+					if (source.isLockable()) {
+						lockfileOutdated.set(true);
 					}
+					meta = useStaleMetadata ? doStaleMetaResolve(sourceId, source, cacheHelper, ctx) :
+						doMetaResolve(sourceId, source, cacheHelper, ctx);
 				}
-				// Download file
-				if (jar.url != null) {
-					if (jar.downloadCheck != null) {
-						jar.downloadCheck.check();
+				if (sourceResolved.get(index).compareAndSet(false, true)) {
+					try {
+						metadataResults.set(index, meta);
+						sourceUrls.set(index, queueJars(meta, workerManager, fileCommitter, retryPolicy, hedgePolicy));
+					} finally {
+						sourceQueued.get(index).countDown();
 					}
-					LOGGER.info("Queueing download: " + jar.friendlyName);
-					downloadQueue.add(jar);
 				} else {
-					// Doesn't have a source, and we can't find it!
-					throw new RuntimeException("Could not locate file " + jar.path);
+					// The other resolution of this source completed first, so wait for it to queue it's jars
+					sourceQueued.get(index).await();
+					if (sourceUrls.get(index) == null) {
+						throw new IOException("Failed to resolve source " + sourceId);
+					}
 				}
+				return null;
+			} finally {
+				// Wake up the main loop to check the result
+				workerManager.signalEvent();
 			}
+		};
+		List<Future<Void>> sourceFutures = new ArrayList<>();
+		for (int i = 0; i < sourceIds.size(); i++) {
+			sourceResolved.add(new AtomicBoolean());
+			sourceQueued.add(new CountDownLatch(1));
 		}
+		for (int i = 0; i < sourceIds.size(); i++) {
+			sourceFutures.add(sourceCompletionService.submit(createSourceTask.apply(i, false)));
+		}
+		int deadlineSeconds = ctx.getConfigFile().resolutionDeadlineSeconds;
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(deadlineSeconds);
+		boolean deadlinePassed = deadlineSeconds <= 0;
 
-		if (!downloadQueue.isEmpty()) {
-			DownloadWorkerManager<URL> workerManager = new DownloadWorkerManager<>();
-			for (ResolvableJar jar : downloadQueue) {
-				workerManager.queueWorker(status -> {
-					Files.createDirectories(jar.path.getParent());
-
-					URLConnection conn = jar.url.openConnection();
-					conn.setRequestProperty("User-Agent", Jumploader.USER_AGENT);
-					conn.setRequestProperty("Accept", "application/octet-stream");
-
-					int contentLength = conn.getContentLength();
-					Path tmpPath = jar.path.resolveSibling(jar.path.getFileName() + ".tmp");
-					try (InputStream res = jar.hashVerifier != null ? jar.hashVerifier.getVerifier(conn.getInputStream()) : conn.getInputStream();
-						 BytesReportingInputStream bris = new BytesReportingInputStream(res, status, contentLength)) {
-						Files.copy(bris, tmpPath, StandardCopyOption.REPLACE_EXISTING);
-						Files.move(tmpPath, jar.path, StandardCopyOption.REPLACE_EXISTING);
-					} catch (InvalidHashException e) {
-						Files.deleteIfExists(jar.path);
-						Files.deleteIfExists(tmpPath);
-						throw e;
+		GUIManager guiManager = null;
+		boolean closeTriggered = false;
+		int sourcesRemaining = sourceIds.size();
+		try {
+			while (sourcesRemaining > 0 || !workerManager.isDone()) {
+				// Check completed sources first, so metadata failures are reported immediately
+				Future<Void> completedSource;
+				while ((completedSource = sourceCompletionService.poll()) != null) {
+					if (completedSource.isCancelled()) {
+						// Replaced by a resolution from cached metadata, which reports any failure to queue the jars
+						continue;
 					}
-
-					return jar.url;
-				});
-			}
-
-			if (!ctx.useUI()) {
-				while (!workerManager.isDone()) {
-					LOGGER.info("Progress: " + (workerManager.getWorkerProgress() * 100) + "%");
-					URL resolvedURL;
+					sourcesRemaining--;
 					try {
-						resolvedURL = workerManager.pollResult(500);
-					} catch (InvalidHashException e) {
-						try {
-							workerManager.shutdown();
-						} catch (InterruptedException ex) {
-							throw new RuntimeException(ex);
+						completedSource.get();
+					} catch (ExecutionException e) {
+						if (e.getCause() instanceof IOException) {
+							throw (IOException) e.getCause();
 						}
-						ErrorMessages.showFatalMessage("Jumploader failed to load", "Hash mismatch for " +
-							e.downloadUrl + "\r\nExpected " + e.expectedHash + " but found " + e.hashFound + ".\r\nIs your internet connection working?", LOGGER);
-						throw new RuntimeException("Failed to download jar");
-					} catch (IOException e) {
-						try {
-							workerManager.shutdown();
-						} catch (InterruptedException ex) {
-							throw new RuntimeException(ex);
+						if (e.getCause() instanceof PreDownloadCheck.PreDownloadCheckException) {
+							throw (PreDownloadCheck.PreDownloadCheckException) e.getCause();
 						}
-						throw e;
-					} catch (ExecutionException | InterruptedException e) {
-						try {
-							workerManager.shutdown();
-						} catch (InterruptedException ex) {
-							throw new RuntimeException(ex);
+						if (e.getCause() instanceof RuntimeException) {
+							throw (RuntimeException) e.getCause();
 						}
-						throw new RuntimeException(e);
-					}
-					if (resolvedURL != null) {
-						LOGGER.info("Downloaded successfully: " + resolvedURL);
+						throw new RuntimeException(e.getCause());
 					}
 				}
 
-				try {
-					workerManager.shutdown();
-				} catch (InterruptedException ex) {
-					throw new RuntimeException(ex);
+				// Failures of any worker are thrown here
+				workerManager.checkFailures();
+
+				if (!deadlinePassed && System.nanoTime() - deadline >= 0) {
+					deadlinePassed = true;
+					for (int i = 0; i < sourceIds.size(); i++) {
+						// The original resolution isn't interrupted, as it may complete and start queueing jars at any
+						// time - if it can't be cancelled it has already completed, otherwise it keeps running and it's
+						// result is ignored, unless it resolves before the resolution from cached metadata
+						if (!sourceResolved.get(i).get() && sourceFutures.get(i).cancel(false)) {
+							LOGGER.warn("Source " + sourceIds.get(i) + " didn't resolve within " + deadlineSeconds + " seconds, using cached metadata");
+							sourceFutures.set(i, sourceCompletionService.submit(createSourceTask.apply(i, true)));
+						}
+					}
 				}
-			} else {
-				GUIManager guiManager = new GUIManager(workerManager, ctx.getArguments());
-				guiManager.init();
 
-				boolean closeTriggered = false;
-				while (!workerManager.isDone()) {
+				if (workerManager.hasQueuedWorkers() && ctx.useUI()) {
+					// The window is only opened once there is something to download
+					if (guiManager == null) {
+						guiManager = new GUIManager(workerManager, ctx.getArguments());
+						guiManager.init();
+					}
 					if (guiManager.wasCloseTriggered()) {
 						LOGGER.warn("Download window closed! Shutting down...");
-						try {
-							workerManager.shutdown();
-						} catch (InterruptedException e) {
-							throw new RuntimeException(e);
-						}
 						closeTriggered = true;
 						break;
 					}
 					guiManager.render();
-					URL resolvedURL;
-					try {
-						resolvedURL = workerManager.pollResult();
-					} catch (InvalidHashException e) {
-						try {
-							workerManager.shutdown();
-						} catch (InterruptedException ex) {
-							throw new RuntimeException(ex);
-						}
-						ErrorMessages.showFatalMessage("Jumploader failed to load", "Hash mismatch for " +
-							e.downloadUrl + "\r\nExpected " + e.expectedHash + " but found " + e.hashFound + ".\r\nIs your internet connection working?", LOGGER);
-						guiManager.cleanup();
-						throw new RuntimeException("Failed to download jar");
-					} catch (IOException e) {
-						try {
-							workerManager.shutdown();
-						} catch (InterruptedException ex) {
-							throw new RuntimeException(ex);
-						}
-						guiManager.cleanup();
-						throw e;
-					} catch (ExecutionException | InterruptedException e) {
-						try {
-							workerManager.shutdown();
-						} catch (InterruptedException ex) {
-							throw new RuntimeException(ex);
-						}
-						guiManager.cleanup();
-						throw new RuntimeException(e);
-					}
-					if (resolvedURL != null) {
-						LOGGER.info("Downloaded successfully: " + resolvedURL);
+				} else {
+					// Progress is logged by the listener, so just wait for a source or worker to complete
+					if (deadlinePassed) {
+						workerManager.awaitEvent();
+					} else {
+						workerManager.awaitEvent(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
 					}
 				}
+			}
+			workerManager.checkFailures();
+			loggingListener.logSummary();
+			// Downloaded files must be durable before they are loaded
+			fileCommitter.flush();
+		} catch (InvalidHashException e) {
+			ErrorMessages.showFatalMessage("Jumploader failed to load", "Hash mismatch for " +
+				e.downloadUrl + "\r\nExpected " + e.expectedHash + " but found " + e.hashFound + ".\r\nIs your internet connection working?", LOGGER);
+			throw new RuntimeException("Failed to download jar");
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			sourceExecutor.shutdownNow();
+			try {
+				workerManager.shutdown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (hedgePolicy != null) {
+				hedgePolicy.shutdown();
+			}
+			if (guiManager != null) {
+				guiManager.cleanup();
+			}
+			// If resolution failed, still move the files that were downloaded successfully, so they aren't downloaded again
+			try {
+				fileCommitter.flush();
+			} catch (IOException e) {
+				LOGGER.warn("Failed to sync downloaded files", e);
+			}
+			// Save the index once, including the sources that succeeded if another one failed
+			try {
+				cacheHelper.saveIfDirty();
+			} catch (IOException e) {
+				LOGGER.warn("Failed to save metadata cache index", e);
+			}
+		}
+		if (closeTriggered) {
+			System.exit(1);
+		}
+		// Metadata that is out of date isn't locked, so it can be updated on a later launch
+		if (ctx.getConfigFile().useLockfile && lockfileOutdated.get() && cacheHelper.getSourcesToRefresh().isEmpty()) {
+			try {
+				Lockfile.create(ctx, sourceIds, metadataResults).save(Lockfile.getPath(ctx));
+				LOGGER.info("Wrote lockfile " + Lockfile.getPath(ctx));
+			} catch (IOException e) {
+				LOGGER.warn("Failed to write lockfile", e);
+			}
+		}
+		refreshInBackground(cacheHelper, ctx);
 
+		List<URL> urls = new ArrayList<>();
+		for (List<URL> currentSourceUrls : sourceUrls) {
+			urls.addAll(currentSourceUrls);
+		}
+		return new ResolutionResult(metadataResults, urls);
+	}
+
+	private static <T extends MetadataCacheHelper.InvalidationKey<T>> MetadataResolutionResult doMetaResolve(String sourceId, ResolvableJarSource<T> source, MetadataCacheHelper cacheHelper, ResolutionContext ctx) throws IOException {
+		T key = source.getInvalidationKey(ctx);
+		if (ctx.getConfigFile().staleWhileRevalidate) {
+			// Use the cached metadata immediately, even if it is out of date - it is refreshed once resolution completes
+			MetadataCacheHelper.MetadataCacheView staleView = cacheHelper.viewStaleCache(sourceId, key,
+				TimeUnit.HOURS.toMillis(ctx.getConfigFile().metadataMaxAgeHours));
+			if (staleView != null) {
 				try {
-					workerManager.shutdown();
-				} catch (InterruptedException ex) {
-					throw new RuntimeException(ex);
+					return source.resolve(staleView, ctx);
+				} catch (IOException e) {
+					LOGGER.warn("Failed to use cached metadata for source " + sourceId + ", resolving it again", e);
 				}
+			}
+		}
+		MetadataCacheHelper.MetadataCacheView view = cacheHelper.viewCache(sourceId, key);
+		return source.resolve(view, ctx);
+	}
 
-				guiManager.cleanup();
-				if (closeTriggered) {
-					System.exit(1);
+	private static <T extends MetadataCacheHelper.InvalidationKey<T>> MetadataResolutionResult doStaleMetaResolve(String sourceId, ResolvableJarSource<T> source, MetadataCacheHelper cacheHelper, ResolutionContext ctx) throws IOException {
+		// The metadata is always refreshed afterwards, as it couldn't be retrieved in time
+		MetadataCacheHelper.MetadataCacheView view = cacheHelper.viewStaleCache(sourceId, source.getInvalidationKey(ctx), 0);
+		if (view == null) {
+			throw new IOException("Timed out resolving metadata for source " + sourceId + ", and there is no cached metadata to use instead. Is your internet connection working?");
+		}
+		return source.resolve(view, ctx);
+	}
+
+	private static <T extends MetadataCacheHelper.InvalidationKey<T>> MetadataResolutionResult doOfflineMetaResolve(String sourceId, ResolvableJarSource<T> source, MetadataCacheHelper cacheHelper, ResolutionContext ctx) throws IOException {
+		MetadataCacheHelper.MetadataCacheView view = cacheHelper.viewStaleCache(sourceId, source.getInvalidationKey(ctx), Long.MAX_VALUE);
+		if (view == null) {
+			throw new IOException("Can't launch offline, there is no cached metadata for source " + sourceId);
+		}
+		return source.resolve(view, ctx);
+	}
+
+	private static <T extends MetadataCacheHelper.InvalidationKey<T>> void doMetaRefresh(String sourceId, ResolvableJarSource<T> source, MetadataCacheHelper cacheHelper, ResolutionContext ctx) throws IOException {
+		MetadataCacheHelper.MetadataCacheView view = cacheHelper.viewCacheForRefresh(sourceId, () -> source.getInvalidationKey(ctx));
+		source.resolve(view, ctx);
+	}
+
+	/**
+	 * Refreshes the sources that were resolved from stale metadata on a background thread, so the launch isn't delayed.
+	 * The refreshed metadata is used from the next launch.
+	 */
+	private static void refreshInBackground(MetadataCacheHelper cacheHelper, ResolutionContext ctx) {
+		if (cacheHelper.getSourcesToRefresh().isEmpty()) {
+			return;
+		}
+		Thread refreshThread = new Thread(() -> {
+			for (String sourceId : cacheHelper.getSourcesToRefresh()) {
+				try {
+					doMetaRefresh(sourceId, SourcesRegistry.getSource(sourceId), cacheHelper, ctx);
+					LOGGER.info("Refreshed metadata for source " + sourceId + ", it will be used from the next launch");
+				} catch (IOException | RuntimeException e) {
+					LOGGER.warn("Failed to refresh metadata for source " + sourceId, e);
+				}
+			}
+			try {
+				cacheHelper.saveIfDirty();
+			} catch (IOException e) {
+				LOGGER.warn("Failed to save metadata cache index", e);
+			}
+		}, "Jumploader metadata refresh");
+		// Don't keep the game running if it exits before the refresh completes
+		refreshThread.setDaemon(true);
+		refreshThread.start();
+	}
+
+	/**
+	 * Checks which jars of a source already exist, and queues downloads for the rest. Returns the URLs of all the jars
+	 * of the source.
+	 */
+	private static List<URL> queueJars(MetadataResolutionResult meta, DownloadWorkerManager<URL> workerManager, FileCommitter fileCommitter, RetryPolicy retryPolicy, HedgePolicy hedgePolicy) throws IOException, PreDownloadCheck.PreDownloadCheckException {
+		List<URL> urls = new ArrayList<>();
+		List<ResolvableJar> downloads = new ArrayList<>();
+		for (ResolvableJar jar : meta.jars) {
+			// Add the URL
+			URL jarUrl = jar.path.toUri().toURL();
+			urls.add(jarUrl);
+			Path tmpPath = JarDownloadWorker.getTmpPath(jar.path);
+			// First, check if the file already exists
+			if (Files.exists(jar.path)) {
+				// If it has no download source, we have succeeded!
+				if (jar.url == null) {
+					LOGGER.info("Found JAR: " + jarUrl);
+					continue;
+				}
+
+				// If the .tmp file exists, check the hash of the current file and check it is correct - if it is
+				// incorrect, we need to redownload, but if it is correct just delete the .tmp file
+				if (Files.exists(tmpPath)) {
+					// If .tmp exists and there is no hash verifier, redownload
+					if (jar.hashVerifier != null) {
+						boolean hashIsValid = true;
+						try {
+							// Hash the file through a memory mapping, rather than copying it through a stream
+							HashVerifier verifier = jar.hashVerifier.getBufferVerifier();
+							ChannelTransfer.hashFile(jar.path, -1, verifier);
+							verifier.verify();
+						} catch (InvalidHashException ignored) {
+							hashIsValid = false;
+						}
+						if (hashIsValid) {
+							Files.delete(tmpPath);
+							LOGGER.info("Found JAR: " + jarUrl);
+							continue;
+						}
+					}
+				} else {
+					LOGGER.info("Found JAR: " + jarUrl);
+					continue;
 				}
 			}
+			// Download file
+			if (jar.url != null) {
+				if (jar.downloadCheck != null) {
+					jar.downloadCheck.check();
+				}
+				downloads.add(jar);
+			} else {
+				// Doesn't have a source, and we can't find it!
+				throw new RuntimeException("Could not locate file " + jar.path);
+			}
+		}
+		if (downloads.isEmpty()) {
+			return urls;
 		}
 
+		long requiredBytes = 0;
+		for (ResolvableJar jar : downloads) {
+			if (jar.expectedSize != -1) {
+				requiredBytes += jar.expectedSize;
+			}
+		}
+		Map<DownloadWorkerManager.DownloadWorker<URL>, Long> workers = new LinkedHashMap<>();
+		for (ResolvableJar jar : downloads) {
+			LOGGER.info("Queueing download: " + jar.friendlyName);
+			workers.put(new JarDownloadWorker(jar, workerManager, RequestUtils.getTransport(), fileCommitter, retryPolicy, hedgePolicy), jar.expectedSize);
+		}
+		// Sources queue their downloads concurrently, so the space required by other sources must be counted too
+		long finalRequiredBytes = requiredBytes;
+		workerManager.queueWorkers(workers, remainingBytes -> new DiskSpaceCheck(downloads.get(0).path.getParent(), remainingBytes + finalRequiredBytes));
 		return urls;
 	}
 }
@@ -0,0 +1,18 @@
+package link.infra.jumploader.resolution;
+
+import link.infra.jumploader.resolution.sources.MetadataResolutionResult;
+
+import java.net.URL;
+import java.util.List;
+
+public class ResolutionResult {
+	// The metadata for each source, in the order of the sources in the configuration file
+	public final List<MetadataResolutionResult> metadata;
+	// The URLs of all resolved jars, in source order
+	public final List<URL> urls;
+
+	public ResolutionResult(List<MetadataResolutionResult> metadata, List<URL> urls) {
+		this.metadata = metadata;
+		this.urls = urls;
+	}
+}
@@ -12,6 +12,8 @@ public class ResolvableJar {
 	public final HashVerifierProvider hashVerifier;
 	public final PreDownloadCheck downloadCheck;
 	public final String friendlyName;
+	// The expected size of the file in bytes, or -1 if it is not known
+	public final long expectedSize;
 
 	public ResolvableJar(Path path, String friendlyName) {
 		this.url = null;
@@ -19,14 +21,21 @@ public class ResolvableJar {
 		this.friendlyName = friendlyName;
 		this.hashVerifier = null;
 		this.downloadCheck = null;
+		this.expectedSize = -1;
 	}
 
 	public ResolvableJar(URL url, Path path, HashVerifierProvider hashVerifier, String friendlyName) {
+		this(url, path, hashVerifier, -1, friendlyName);
+	}
+
+	public ResolvableJar(URL url, Path path, HashVerifierProvider hashVerifier, long expectedSize, String friendlyName) {
 		this.url = url;
 		this.path = path;
 		this.hashVerifier = hashVerifier;
 		this.friendlyName = friendlyName;
 		this.downloadCheck = null;
+		// Sizes that weren't known when metadata was cached are deserialised as 0
+		this.expectedSize = expectedSize > 0 ? expectedSize : -1;
 	}
 
 	public ResolvableJar(URL url, Path path, HashVerifierProvider hashVerifier, PreDownloadCheck downloadCheck, String friendlyName) {
@@ -35,5 +44,6 @@ public class ResolvableJar {
 		this.hashVerifier = hashVerifier;
 		this.downloadCheck = downloadCheck;
 		this.friendlyName = friendlyName;
+		this.expectedSize = -1;
 	}
 }
@@ -0,0 +1,81 @@
+package link.infra.jumploader.resolution.download;
+
+/**
+ * Limits the number of concurrent downloads, adjusting the limit by hill climbing on the measured aggregate
+ * throughput: the limit keeps moving in the same direction while throughput improves, and reverses when it gets worse.
+ */
+class AdaptiveConcurrencyLimiter {
+	private static final long SAMPLE_INTERVAL_MILLIS = 1000;
+	// Changes in throughput smaller than this fraction are treated as noise
+	private static final double THROUGHPUT_TOLERANCE = 0.1;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private int limit;
+	private int active = 0;
+	private int direction = 1;
+
+	private long lastSampleTime = System.nanoTime();
+	private long lastSampleBytes = 0;
+	private double lastThroughput = -1;
+	private boolean demandSinceLastSample = false;
+
+	AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+		this.maxLimit = Math.max(1, maxLimit);
+		this.minLimit = Math.max(1, Math.min(minLimit, this.maxLimit));
+		this.limit = Math.max(this.minLimit, Math.min(initialLimit, this.maxLimit));
+	}
+
+	synchronized boolean tryAcquire() {
+		if (active < limit) {
+			active++;
+			return true;
+		}
+		demandSinceLastSample = true;
+		return false;
+	}
+
+	synchronized void release() {
+		active--;
+	}
+
+	synchronized int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Samples the total number of bytes downloaded, adjusting the limit once every sample interval. Returns true if
+	 * the limit was increased.
+	 */
+	synchronized boolean update(long totalBytes) {
+		long now = System.nanoTime();
+		long elapsedMillis = (now - lastSampleTime) / 1_000_000;
+		if (elapsedMillis < SAMPLE_INTERVAL_MILLIS) {
+			return false;
+		}
+		double throughput = (totalBytes - lastSampleBytes) * 1000.0 / elapsedMillis;
+		lastSampleTime = now;
+		lastSampleBytes = totalBytes;
+
+		int oldLimit = limit;
+		if (lastThroughput >= 0) {
+			if (throughput < lastThroughput * (1 - THROUGHPUT_TOLERANCE)) {
+				// The last change made things worse, so go the other way
+				direction = -direction;
+				limit += direction;
+			} else if (throughput > lastThroughput * (1 + THROUGHPUT_TOLERANCE)) {
+				limit += direction;
+			}
+		} else {
+			limit += direction;
+		}
+		// Don't grow past the number of downloads that actually want to run
+		if (limit > oldLimit && !demandSinceLastSample) {
+			limit = oldLimit;
+		}
+		limit = Math.max(minLimit, Math.min(limit, maxLimit));
+		lastThroughput = throughput;
+		demandSinceLastSample = false;
+		return limit > oldLimit;
+	}
+}
@@ -0,0 +1,39 @@
+package link.infra.jumploader.resolution.download;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct ByteBuffers for downloads. Direct buffers are expensive to allocate and are only freed by the garbage
+ * collector, so they are reused between downloads instead.
+ */
+class BufferPool {
+	private BufferPool() {}
+
+	static final int BUFFER_SIZE = 64 * 1024;
+	// Buffers released when the pool is full are left for the garbage collector
+	private static final int MAX_POOLED_BUFFERS = 64;
+
+	private static final Queue<ByteBuffer> pooledBuffers = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger pooledCount = new AtomicInteger();
+
+	static ByteBuffer acquire() {
+		ByteBuffer buffer = pooledBuffers.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		pooledCount.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	static void release(ByteBuffer buffer) {
+		if (pooledCount.incrementAndGet() > MAX_POOLED_BUFFERS) {
+			pooledCount.decrementAndGet();
+			return;
+		}
+		pooledBuffers.add(buffer);
+	}
+}
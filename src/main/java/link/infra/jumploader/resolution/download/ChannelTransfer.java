@@ -0,0 +1,196 @@
+package link.infra.jumploader.resolution.download;
+
+import link.infra.jumploader.resolution.download.verification.HashVerifier;
+import link.infra.jumploader.util.BandwidthLimiter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Copies downloads into files through pooled direct buffers, hashing and counting each buffer in place. Two buffers are
+ * used for each transfer, so the next buffer is read from the network while the previous one is being written to disk.
+ */
+public class ChannelTransfer {
+	private ChannelTransfer() {}
+
+	// Files are mapped in regions of this size when hashing, so large files don't need a large contiguous mapping
+	private static final long MAPPED_REGION_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * Transfers data from src to dest, starting at position in dest. If length is -1 the transfer continues until the
+	 * end of src, otherwise exactly length bytes are transferred - if requireEnd is true, src must also end after length
+	 * bytes. The data is given to verifier and counted in status, if they aren't null; returns the number of bytes
+	 * transferred. The transfer is limited by the BandwidthLimiter for the given priority.
+	 */
+	public static long transfer(InputStream src, AsynchronousFileChannel dest, long position, long length, boolean requireEnd, HashVerifier verifier, DownloadWorkerManager.TaskStatus status, BandwidthLimiter.Priority priority) throws IOException {
+		ReadableByteChannel srcChannel = Channels.newChannel(src);
+		ByteBuffer[] buffers = {BufferPool.acquire(), BufferPool.acquire()};
+		@SuppressWarnings("unchecked")
+		Future<Integer>[] pendingWrites = new Future[2];
+		long[] writePositions = new long[2];
+		long transferred = 0;
+		int current = 0;
+		try {
+			while (length == -1 || transferred < length) {
+				ByteBuffer buffer = buffers[current];
+				// The buffer can't be reused until the last write from it has completed
+				completeWrite(dest, buffer, pendingWrites[current], writePositions[current]);
+				pendingWrites[current] = null;
+
+				buffer.clear();
+				if (length != -1) {
+					buffer.limit((int) Math.min(buffer.capacity(), length - transferred));
+				}
+				boolean reachedEnd = false;
+				while (buffer.hasRemaining()) {
+					if (srcChannel.read(buffer) == -1) {
+						reachedEnd = true;
+						break;
+					}
+				}
+				buffer.flip();
+				int bytesRead = buffer.remaining();
+				if (bytesRead > 0) {
+					// Time spent waiting for bandwidth counts as activity, so throttled downloads aren't restarted as stalled
+					BandwidthLimiter.acquire(bytesRead, priority, status != null ? status::markActive : null);
+					if (verifier != null) {
+						verifier.update(buffer);
+					}
+					if (status != null) {
+						status.addDownloaded(bytesRead);
+					}
+					writePositions[current] = position + transferred;
+					pendingWrites[current] = dest.write(buffer, writePositions[current]);
+					transferred += bytesRead;
+					current ^= 1;
+				}
+				if (reachedEnd) {
+					break;
+				}
+			}
+			if (length != -1 && transferred == length && requireEnd) {
+				ByteBuffer extraData = buffers[current];
+				completeWrite(dest, extraData, pendingWrites[current], writePositions[current]);
+				pendingWrites[current] = null;
+				extraData.clear();
+				extraData.limit(1);
+				// Check for any data after the expected end - read may return 0 bytes without reaching the end
+				int extraRead;
+				do {
+					extraRead = srcChannel.read(extraData);
+				} while (extraRead == 0);
+				if (extraRead > 0) {
+					throw new IOException("Download is longer than the expected " + length + " bytes");
+				}
+			}
+			for (int i = 0; i < buffers.length; i++) {
+				completeWrite(dest, buffers[i], pendingWrites[i], writePositions[i]);
+				pendingWrites[i] = null;
+			}
+		} finally {
+			// Writes may still be using the buffers if the transfer failed, so wait for them before they are reused
+			boolean writesCompleted = true;
+			for (Future<Integer> pendingWrite : pendingWrites) {
+				if (pendingWrite != null) {
+					try {
+						pendingWrite.get();
+					} catch (ExecutionException ignored) {
+						// The transfer has already failed
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						writesCompleted = false;
+					}
+				}
+			}
+			if (writesCompleted) {
+				BufferPool.release(buffers[0]);
+				BufferPool.release(buffers[1]);
+			}
+		}
+		if (length != -1 && transferred < length) {
+			throw new IOException("Download ended early, " + (length - transferred) + " bytes missing");
+		}
+		return transferred;
+	}
+
+	/**
+	 * Waits for a write to complete, then writes any of the buffer that wasn't written
+	 */
+	private static void completeWrite(AsynchronousFileChannel dest, ByteBuffer buffer, Future<Integer> pendingWrite, long writePosition) throws IOException {
+		while (pendingWrite != null) {
+			try {
+				pendingWrite.get();
+			} catch (InterruptedException e) {
+				InterruptedIOException ex = new InterruptedIOException("Interrupted while writing download");
+				ex.initCause(e);
+				throw ex;
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException("Failed to write download", e.getCause());
+			}
+			// The buffer's position is the number of bytes written so far, as it was flipped from position 0
+			pendingWrite = buffer.hasRemaining() ? dest.write(buffer, writePosition + buffer.position()) : null;
+		}
+	}
+
+	/**
+	 * Updates verifier with the first length bytes of the file (or the whole file, if length is -1), hashing
+	 * memory mapped regions of the file rather than copying it through a buffer
+	 */
+	public static void hashFile(Path path, long length, HashVerifier verifier) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long end = length == -1 ? channel.size() : Math.min(length, channel.size());
+			for (long position = 0; position < end; position += MAPPED_REGION_SIZE) {
+				MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_REGION_SIZE, end - position));
+				try {
+					verifier.update(region);
+				} finally {
+					unmap(region);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Attempts to unmap a buffer immediately, rather than when it is garbage collected - on Windows, a file can't be
+	 * moved or deleted while it is mapped
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			// Java 9+
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+			return;
+		} catch (ReflectiveOperationException | RuntimeException ignored) {
+			// Fall back to the Java 8 method
+		}
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (ReflectiveOperationException | RuntimeException ignored) {
+			// The buffer will be unmapped when it is garbage collected
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package link.infra.jumploader.resolution.download;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Checks that the disk a directory is on has enough usable space for the given number of bytes
+ */
+public class DiskSpaceCheck implements PreDownloadCheck {
+	private final Path directory;
+	private final long requiredBytes;
+
+	public DiskSpaceCheck(Path directory, long requiredBytes) {
+		this.directory = directory;
+		this.requiredBytes = requiredBytes;
+	}
+
+	@Override
+	public void check() throws PreDownloadCheckException {
+		long usableSpace;
+		try {
+			usableSpace = getFileStore().getUsableSpace();
+		} catch (IOException e) {
+			// Don't prevent downloading if the space can't be determined
+			return;
+		}
+		if (usableSpace < requiredBytes) {
+			throw new PreDownloadCheckException("Not enough disk space to download files to " + directory + ": " +
+				(requiredBytes / (1024 * 1024)) + " MiB required, but only " + (usableSpace / (1024 * 1024)) + " MiB available");
+		}
+	}
+
+	/**
+	 * Gets the FileStore of the directory, or it's closest parent if it doesn't exist yet
+	 */
+	private FileStore getFileStore() throws IOException {
+		Path existingPath = directory.toAbsolutePath();
+		while (existingPath != null && !Files.exists(existingPath)) {
+			existingPath = existingPath.getParent();
+		}
+		if (existingPath == null) {
+			throw new IOException("No existing parent of " + directory);
+		}
+		return Files.getFileStore(existingPath);
+	}
+}
@@ -0,0 +1,18 @@
+package link.infra.jumploader.resolution.download;
+
+/**
+ * Receives events from the workers of a DownloadWorkerManager. Events are sent from the worker threads, so listeners
+ * must be thread safe and should return quickly.
+ */
+public interface DownloadListener<T> {
+	default void downloadStarted(DownloadWorkerManager.TaskStatus status) {}
+
+	/**
+	 * Called as bytes are downloaded - the totals of all workers can be retrieved from the DownloadWorkerManager
+	 */
+	default void downloadProgress(DownloadWorkerManager.TaskStatus status) {}
+
+	default void downloadCompleted(DownloadWorkerManager.TaskStatus status, T result) {}
+
+	default void downloadFailed(DownloadWorkerManager.TaskStatus status, Throwable failure) {}
+}
@@ -1,167 +1,555 @@
 package link.infra.jumploader.resolution.download;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
 
 public class DownloadWorkerManager<T> {
-	private final ExecutorService threadPool = Executors.newFixedThreadPool(5);
-	private final ExecutorCompletionService<TaskResult> completionService = new ExecutorCompletionService<>(threadPool);
+	// The number of running threads is bounded by the concurrency limiter, plus any subtasks, rather than by the pool
+	private final ExecutorService threadPool = createThreadPool();
+	private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+	// Workers wait here until the concurrency limiter allows them to start - the largest downloads are started first, so
+	// the longest download doesn't end up starting last
+	private final Queue<PendingWorker> pendingWorkers = new PriorityQueue<>(Comparator
+		.comparingLong((PendingWorker worker) -> worker.expectedSize).reversed()
+		.thenComparingLong(worker -> worker.sequence));
+	private long nextSequence = 0;
 
-	private int queuedTasks = 0;
-	private final List<TaskStatus> statusValues = new ArrayList<>();
+	private final List<DownloadListener<? super T>> listeners = new CopyOnWriteArrayList<>();
+	// Failures are stored until they are checked by the thread waiting for the workers
+	private final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+	// All the tasks that have been started, including completed tasks, so tasks can be compared to their peers
+	private final Queue<TaskStatus> startedTasks = new ConcurrentLinkedQueue<>();
+	private final Map<TaskStatus, DownloadWorker<T>> runningWorkers = new ConcurrentHashMap<>();
+
+	// Workers that haven't made progress for this long are told that they have stalled, or 0 to disable stall detection
+	private final long stallTimeoutNanos;
+	private final ScheduledExecutorService stallDetector;
+
+	// Totals are updated incrementally by each TaskStatus, so reading them doesn't depend on the number of tasks
+	private final AtomicInteger queuedTasks = new AtomicInteger();
 	private final AtomicInteger completedTasks = new AtomicInteger();
+	private final LongAdder totalDownloaded = new LongAdder();
+	private final LongAdder totalExpected = new LongAdder();
+	// Total bytes transferred by all workers, including restarted downloads, used to measure throughput
+	private final LongAdder bytesTransferred = new LongAdder();
+
+	// Set when a worker completes, so awaitEvent can't miss events that happen before it starts waiting
+	private final Object eventLock = new Object();
+	// Held while a batch of workers is checked and queued
+	private final Object batchLock = new Object();
+	private boolean eventSignalled = false;
+
+	// Used in place of the expected length of downloads with an unknown size, for progress reporting
+	private static final long UNKNOWN_SIZE_ESTIMATE = 256 * 1024;
+	private static final int INITIAL_CONCURRENT_DOWNLOADS = 4;
+	private static final int MIN_CONCURRENT_DOWNLOADS = 2;
+	private static final long STALL_CHECK_INTERVAL_MILLIS = 1000;
+
+	/**
+	 * Creates a DownloadWorkerManager that runs up to maxConcurrentDownloads workers at once - the actual number of
+	 * workers adapts to the measured throughput
+	 */
+	public DownloadWorkerManager(int maxConcurrentDownloads) {
+		this(maxConcurrentDownloads, 0);
+	}
+
+	/**
+	 * Creates a DownloadWorkerManager that also detects workers that haven't made progress for stallTimeoutMillis, and
+	 * calls their stalled method
+	 */
+	public DownloadWorkerManager(int maxConcurrentDownloads, long stallTimeoutMillis) {
+		concurrencyLimiter = new AdaptiveConcurrencyLimiter(INITIAL_CONCURRENT_DOWNLOADS, MIN_CONCURRENT_DOWNLOADS, maxConcurrentDownloads);
+		stallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(stallTimeoutMillis);
+		if (stallTimeoutMillis > 0) {
+			stallDetector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "Jumploader download stall detection");
+				thread.setDaemon(true);
+				return thread;
+			});
+			stallDetector.scheduleWithFixedDelay(this::checkStalledWorkers, STALL_CHECK_INTERVAL_MILLIS, STALL_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		} else {
+			stallDetector = null;
+		}
+	}
+
+	/**
+	 * Uses a virtual thread per task when running on Java 21 or later, as workers spend most of their time blocked on
+	 * network I/O. Otherwise, uses a cached pool of platform threads.
+	 */
+	private static ExecutorService createThreadPool() {
+		try {
+			Method virtualThreadFactory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) virtualThreadFactory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			// Not available (or only available as a preview feature) on this JVM
+			return Executors.newCachedThreadPool();
+		}
+	}
 
 	/**
 	 * A DownloadWorker downloads one file, reporting its progress to the TaskStatus given
 	 */
 	public interface DownloadWorker<T> {
 		T start(TaskStatus status) throws IOException;
+
+		/**
+		 * Called from another thread when the worker hasn't made progress for the stall timeout, so it can abort and
+		 * restart the request that has stalled
+		 */
+		default void stalled(TaskStatus status) {}
+
+		default String getName() {
+			return toString();
+		}
 	}
 
+	/**
+	 * The progress of a single worker. Counters are atomic, as segmented downloads report progress from multiple threads.
+	 */
 	public static class TaskStatus {
-		private int downloaded = 0;
-		private int expectedLength = -1;
-		private boolean done = false;
+		private final DownloadWorkerManager<?> manager;
+		private final String name;
+		private final AtomicLong downloaded = new AtomicLong();
+		private final AtomicLong expectedLength = new AtomicLong(-1);
+		// The amount this task currently adds to the manager's total expected length
+		private final AtomicLong expectedContribution = new AtomicLong();
+		private volatile boolean done = false;
+		// Timestamps (from System.nanoTime) used to compare the latency and throughput of tasks, or -1 if not reached yet
+		private volatile long startTime = -1;
+		private volatile long firstByteTime = -1;
+		private volatile long endTime = -1;
+		// The last time the task downloaded something or reported that it is active, used to detect stalled workers
+		private volatile long lastActiveTime = -1;
+
+		private TaskStatus(DownloadWorkerManager<?> manager, String name) {
+			this.manager = manager;
+			this.name = name;
+		}
 
-		private TaskStatus() {}
+		public void addDownloaded(long downloaded) {
+			long now = System.nanoTime();
+			if (firstByteTime == -1) {
+				firstByteTime = now;
+			}
+			lastActiveTime = now;
+			this.downloaded.addAndGet(downloaded);
+			manager.totalDownloaded.add(downloaded);
+			manager.bytesTransferred.add(downloaded);
+			updateExpectedContribution();
+			manager.onProgress(this);
+		}
+
+		/**
+		 * Resets the downloaded byte count, for when a download is restarted from the beginning
+		 */
+		public void resetDownloaded() {
+			manager.totalDownloaded.add(-downloaded.getAndSet(0));
+			updateExpectedContribution();
+		}
+
+		/**
+		 * Replaces the downloaded byte count, for when the download was completed by a request that didn't report it's
+		 * progress (e.g. a hedged request). The bytes aren't counted as transferred, as they weren't transferred at the
+		 * time they are reported, so they would skew the measured throughput.
+		 */
+		public void setDownloaded(long downloaded) {
+			lastActiveTime = System.nanoTime();
+			manager.totalDownloaded.add(downloaded - this.downloaded.getAndSet(downloaded));
+			updateExpectedContribution();
+			manager.onProgress(this);
+		}
+
+		public void setExpectedLength(long expectedLength) {
+			this.expectedLength.set(expectedLength);
+			updateExpectedContribution();
+		}
 
-		public synchronized void setDownloaded(int downloaded) {
-			this.downloaded = downloaded;
+		/**
+		 * Reports that the task is active without having downloaded anything (e.g. when it sends a new request), so it
+		 * isn't treated as having stalled
+		 */
+		public void markActive() {
+			lastActiveTime = System.nanoTime();
 		}
 
-		public synchronized void setExpectedLength(int expectedLength) {
-			this.expectedLength = expectedLength;
+		private void markStarted() {
+			startTime = System.nanoTime();
+			lastActiveTime = startTime;
 		}
 
-		private synchronized void markCompleted() {
+		private void markCompleted() {
+			endTime = System.nanoTime();
 			done = true;
+			updateExpectedContribution();
 		}
 
-		private synchronized int getDownloaded() {
+		private long calculateExpectedContribution() {
+			long currentDownloaded = downloaded.get();
+			// Once complete, the downloaded length is the actual length
 			if (done) {
-				if (downloaded != expectedLength && expectedLength != -1) {
-					return expectedLength;
-				}
+				return currentDownloaded;
+			}
+			long currentExpected = expectedLength.get();
+			if (currentExpected == -1) {
+				return Math.max(currentDownloaded + 1, UNKNOWN_SIZE_ESTIMATE);
 			}
-			return downloaded;
+			// The server may send more than expected
+			return Math.max(currentDownloaded, currentExpected);
 		}
 
-		private synchronized int getExpectedLength() {
-			if (done) {
-				if (downloaded != expectedLength) {
-					return downloaded;
+		/**
+		 * Applies the change in this task's expected length to the manager's total. Every change to the counters is
+		 * followed by a call to this, so the last update always sees the latest values.
+		 */
+		private void updateExpectedContribution() {
+			while (true) {
+				long oldContribution = expectedContribution.get();
+				long newContribution = calculateExpectedContribution();
+				if (oldContribution == newContribution) {
+					return;
+				}
+				if (expectedContribution.compareAndSet(oldContribution, newContribution)) {
+					manager.totalExpected.add(newContribution - oldContribution);
+					return;
 				}
 			}
-			if (expectedLength == -1) {
-				return done ? downloaded : downloaded + 1;
-			}
-			return expectedLength;
 		}
 
-		public synchronized boolean isComplete() {
+		public String getName() {
+			return name;
+		}
+
+		public long getDownloaded() {
+			return downloaded.get();
+		}
+
+		/**
+		 * Gets the expected length of the download, or -1 if it isn't known
+		 */
+		public long getExpectedLength() {
+			return expectedLength.get();
+		}
+
+		public boolean isComplete() {
 			return done;
 		}
-	}
 
-	private class TaskResult {
-		private final IOException failure;
-		private final T result;
+		/**
+		 * Gets the time between the task starting and receiving it's first byte, or the time it has been waiting so far if
+		 * it hasn't received anything yet. Returns -1 if the task hasn't started.
+		 */
+		public long getTimeToFirstByteNanos(long now) {
+			long start = startTime;
+			if (start == -1) {
+				return -1;
+			}
+			long firstByte = firstByteTime;
+			return (firstByte != -1 ? firstByte : now) - start;
+		}
 
-		private TaskResult(T result) {
-			this.result = result;
-			this.failure = null;
+		/**
+		 * Gets the average throughput of the task, in bytes per second, since it received it's first byte. Returns -1 if
+		 * it hasn't received anything yet.
+		 */
+		public double getThroughput(long now) {
+			long firstByte = firstByteTime;
+			if (firstByte == -1) {
+				return -1;
+			}
+			long end = endTime != -1 ? endTime : now;
+			return downloaded.get() / (Math.max(1, end - firstByte) / 1e9);
 		}
 
-		private TaskResult(IOException failure) {
-			this.result = null;
-			this.failure = failure;
+		/**
+		 * Gets the time since the task received it's first byte, or -1 if it hasn't received anything yet
+		 */
+		public long getTimeSinceFirstByteNanos(long now) {
+			long firstByte = firstByteTime;
+			return firstByte != -1 ? now - firstByte : -1;
 		}
 
-		public IOException getFailure() {
-			return failure;
+		public boolean hasReceivedData() {
+			return firstByteTime != -1;
 		}
+	}
+
+	private static class PendingWorker {
+		private final Runnable task;
+		private final long expectedSize;
+		private final long sequence;
 
-		public T getResult() {
-			return result;
+		private PendingWorker(Runnable task, long expectedSize, long sequence) {
+			this.task = task;
+			this.expectedSize = expectedSize;
+			this.sequence = sequence;
 		}
 	}
 
+	public void addListener(DownloadListener<? super T> listener) {
+		listeners.add(listener);
+	}
+
 	/**
-	 * Queues a new worker. Must not be called at the same time as isDone or getWorkerProgress
+	 * Queues a new worker. Can be called from any thread, including while waiting for events.
 	 */
 	public void queueWorker(DownloadWorker<T> worker) {
-		TaskStatus status = new TaskStatus();
-		completionService.submit(() -> {
+		queueWorker(worker, -1);
+	}
+
+	/**
+	 * Queues a new worker with the expected size of it's download, or -1 if it isn't known. Workers with larger expected
+	 * sizes are started first, and workers with unknown sizes are started last.
+	 */
+	public void queueWorker(DownloadWorker<T> worker, long expectedSize) {
+		TaskStatus status = new TaskStatus(this, worker.getName());
+		status.setExpectedLength(expectedSize > 0 ? expectedSize : -1);
+		// Count the task first, so isDone can't be true while the worker is being submitted
+		queuedTasks.incrementAndGet();
+		synchronized (pendingWorkers) {
+			pendingWorkers.add(new PendingWorker(() -> runWorker(worker, status), expectedSize, nextSequence++));
+		}
+		dispatchPendingWorkers();
+	}
+
+	/**
+	 * Queues a batch of workers with their expected sizes (see queueWorker), if the check created for the number of
+	 * bytes already remaining for the queued workers passes. Batches are checked and queued one at a time, so each check
+	 * counts the workers of batches queued concurrently.
+	 */
+	public void queueWorkers(Map<DownloadWorker<T>, Long> workers, LongFunction<PreDownloadCheck> checkForRemainingBytes) throws PreDownloadCheck.PreDownloadCheckException {
+		synchronized (batchLock) {
+			checkForRemainingBytes.apply(getRemainingBytes()).check();
+			for (Map.Entry<DownloadWorker<T>, Long> worker : workers.entrySet()) {
+				queueWorker(worker.getKey(), worker.getValue());
+			}
+		}
+	}
+
+	private void runWorker(DownloadWorker<T> worker, TaskStatus status) {
+		status.markStarted();
+		startedTasks.add(status);
+		runningWorkers.put(status, worker);
+		try {
+			for (DownloadListener<? super T> listener : listeners) {
+				listener.downloadStarted(status);
+			}
+			T result;
 			try {
-				T result = worker.start(status);
+				result = worker.start(status);
+			} catch (Throwable e) {
+				// Errors are recorded too, so the download isn't counted as successful
 				status.markCompleted();
-				return new TaskResult(result);
-			} catch (IOException e) {
-				status.markCompleted();
-				return new TaskResult(e);
+				failures.add(e);
+				for (DownloadListener<? super T> listener : listeners) {
+					listener.downloadFailed(status, e);
+				}
+				return;
+			}
+			status.markCompleted();
+			for (DownloadListener<? super T> listener : listeners) {
+				listener.downloadCompleted(status, result);
 			}
- 		});
-		statusValues.add(status);
-		queuedTasks++;
+		} finally {
+			runningWorkers.remove(status);
+			completedTasks.incrementAndGet();
+			concurrencyLimiter.release();
+			dispatchPendingWorkers();
+			signalEvent();
+		}
 	}
 
-	public T pollResult() throws IOException, ExecutionException, InterruptedException {
-		Future<TaskResult> fRes = completionService.poll();
-		if (fRes == null) {
-			return null;
+	private void checkStalledWorkers() {
+		long now = System.nanoTime();
+		for (Map.Entry<TaskStatus, DownloadWorker<T>> entry : runningWorkers.entrySet()) {
+			TaskStatus status = entry.getKey();
+			if (now - status.lastActiveTime > stallTimeoutNanos) {
+				// Restart the timer, so the worker is only told once per stall timeout
+				status.markActive();
+				entry.getValue().stalled(status);
+			}
 		}
-		TaskResult res = fRes.get();
-		completedTasks.incrementAndGet();
+	}
 
-		if (res.getFailure() != null) {
-			throw res.getFailure();
+	/**
+	 * Starts as many pending workers as the concurrency limiter allows
+	 */
+	private void dispatchPendingWorkers() {
+		synchronized (pendingWorkers) {
+			while (!pendingWorkers.isEmpty() && concurrencyLimiter.tryAcquire()) {
+				try {
+					threadPool.execute(pendingWorkers.remove().task);
+				} catch (RejectedExecutionException e) {
+					// The manager has been shut down
+					concurrencyLimiter.release();
+					return;
+				}
+			}
 		}
-		return res.getResult();
 	}
 
-	public T pollResult(long millisecondsToWait) throws IOException, InterruptedException, ExecutionException {
-		Future<TaskResult> fRes = completionService.poll(millisecondsToWait, TimeUnit.MILLISECONDS);
-		if (fRes == null) {
-			return null;
+	private void onProgress(TaskStatus status) {
+		// Adjusting here means the concurrency is only sampled while downloads are making progress, without polling
+		if (concurrencyLimiter.update(bytesTransferred.sum())) {
+			dispatchPendingWorkers();
+		}
+		for (DownloadListener<? super T> listener : listeners) {
+			listener.downloadProgress(status);
 		}
-		TaskResult res = fRes.get();
-		completedTasks.incrementAndGet();
+	}
+
+	public boolean hasQueuedWorkers() {
+		return queuedTasks.get() > 0;
+	}
 
-		if (res.getFailure() != null) {
-			throw res.getFailure();
+	/**
+	 * Queues a subtask of a running worker (e.g. one segment of a segmented download) on the thread pool. The subtask
+	 * isn't reported as a result; the worker should wait for it with awaitSubtask.
+	 */
+	public <V> FutureTask<V> queueSubtask(Callable<V> subtask) {
+		FutureTask<V> task = new FutureTask<>(subtask);
+		threadPool.execute(task);
+		return task;
+	}
+
+	/**
+	 * Waits for a subtask to complete. If it hasn't been started by the thread pool yet, it is run on the calling
+	 * thread, so workers waiting on subtasks can't use up all the threads in the pool and deadlock.
+	 */
+	public static <V> V awaitSubtask(FutureTask<V> subtask) throws IOException, InterruptedException {
+		subtask.run();
+		try {
+			return subtask.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Wakes up the thread waiting in awaitEvent - called when a worker completes, and can be called by other tasks
+	 * (e.g. metadata resolution) that the waiting thread should respond to
+	 */
+	public void signalEvent() {
+		synchronized (eventLock) {
+			eventSignalled = true;
+			eventLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until a worker completes or signalEvent is called. Returns immediately if there has been an event since
+	 * the last call.
+	 */
+	public void awaitEvent() throws InterruptedException {
+		synchronized (eventLock) {
+			while (!eventSignalled) {
+				eventLock.wait();
+			}
+			eventSignalled = false;
+		}
+	}
+
+	/**
+	 * Waits until a worker completes, signalEvent is called, or the timeout elapses. Returns true if there has been an
+	 * event.
+	 */
+	public boolean awaitEvent(long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		synchronized (eventLock) {
+			while (!eventSignalled) {
+				long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remainingMillis <= 0) {
+					return false;
+				}
+				eventLock.wait(remainingMillis);
+			}
+			eventSignalled = false;
+			return true;
+		}
+	}
+
+	/**
+	 * Throws the first failure of any worker, if there has been one
+	 */
+	public void checkFailures() throws IOException {
+		Throwable failure = failures.poll();
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+		if (failure != null) {
+			throw (RuntimeException) failure;
 		}
-		return res.getResult();
 	}
 
 	public void shutdown() throws InterruptedException {
+		if (stallDetector != null) {
+			stallDetector.shutdownNow();
+		}
+		synchronized (pendingWorkers) {
+			pendingWorkers.clear();
+		}
 		threadPool.shutdown();
 		threadPool.awaitTermination(10, TimeUnit.SECONDS);
 		threadPool.shutdownNow();
 	}
 
+	/**
+	 * Gets the overall progress of all the queued workers, as the fraction of the total bytes expected that have been
+	 * downloaded
+	 */
 	public float getWorkerProgress() {
-		float completedCount = 0;
-		float sumExpected = 0;
-		float sumDownloaded = 0;
-		for (TaskStatus status : statusValues) {
-			if (status.isComplete()) {
-				completedCount++;
-				continue;
-			}
-			sumDownloaded += status.getDownloaded();
-			sumExpected += status.getExpectedLength();
-		}
-		if (sumExpected == 0) {
-			return completedCount / queuedTasks;
+		long sumExpected = totalExpected.sum();
+		if (sumExpected <= 0) {
+			return 0;
 		}
-		return (completedCount + (sumDownloaded / sumExpected)) / queuedTasks;
+		return (float) ((double) totalDownloaded.sum() / sumExpected);
+	}
+
+	/**
+	 * Gets the number of bytes left to download for all the queued workers, which includes estimates for downloads with
+	 * an unknown size
+	 */
+	public long getRemainingBytes() {
+		return Math.max(0, totalExpected.sum() - totalDownloaded.sum());
+	}
+
+	/**
+	 * Gets the status of every task that has been started, including completed tasks
+	 */
+	public Collection<TaskStatus> getStartedTasks() {
+		return Collections.unmodifiableCollection(startedTasks);
+	}
+
+	public long getTotalDownloaded() {
+		return totalDownloaded.sum();
+	}
+
+	public int getCompletedCount() {
+		return completedTasks.get();
 	}
 
 	@SuppressWarnings("BooleanMethodIsAlwaysInverted")
 	public boolean isDone() {
-		return statusValues.size() == completedTasks.get();
+		return queuedTasks.get() == completedTasks.get();
 	}
 }
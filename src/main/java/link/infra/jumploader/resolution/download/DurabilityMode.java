@@ -0,0 +1,18 @@
+package link.infra.jumploader.resolution.download;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * How downloaded files are synced to disk before they are used
+ */
+public enum DurabilityMode {
+	// Files are moved into place without syncing, so they could be empty or incomplete after a crash
+	@SerializedName("off")
+	OFF,
+	// Files are synced in parallel once all downloads are complete, then moved into place together
+	@SerializedName("batched")
+	BATCHED,
+	// Each file is synced before it is moved into place
+	@SerializedName("perFile")
+	PER_FILE
+}
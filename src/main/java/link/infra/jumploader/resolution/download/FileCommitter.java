@@ -0,0 +1,134 @@
+package link.infra.jumploader.resolution.download;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Moves completely downloaded files into place, syncing them to disk according to the DurabilityMode. In batched mode,
+ * files are only moved once flush is called.
+ */
+public class FileCommitter {
+	private static final Logger LOGGER = LogManager.getLogger();
+	private static final int MAX_SYNC_THREADS = 8;
+
+	private final DurabilityMode mode;
+	private final List<PendingCommit> pendingCommits = new ArrayList<>();
+
+	private static class PendingCommit {
+		private final Path tmpPath;
+		private final Path destPath;
+
+		private PendingCommit(Path tmpPath, Path destPath) {
+			this.tmpPath = tmpPath;
+			this.destPath = destPath;
+		}
+	}
+
+	public FileCommitter(DurabilityMode mode) {
+		this.mode = mode != null ? mode : DurabilityMode.BATCHED;
+	}
+
+	/**
+	 * Moves a completely written file to it's destination - in batched mode, this is deferred until flush is called
+	 */
+	public void commit(Path tmpPath, Path destPath) throws IOException {
+		switch (mode) {
+			case OFF:
+				Files.move(tmpPath, destPath, StandardCopyOption.REPLACE_EXISTING);
+				break;
+			case PER_FILE:
+				syncFile(tmpPath);
+				Files.move(tmpPath, destPath, StandardCopyOption.REPLACE_EXISTING);
+				syncDirectory(destPath.getParent());
+				break;
+			case BATCHED:
+				synchronized (pendingCommits) {
+					pendingCommits.add(new PendingCommit(tmpPath, destPath));
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Syncs the data of all the files committed since the last flush in parallel, then moves them into place and syncs
+	 * each of their directories once
+	 */
+	public void flush() throws IOException {
+		List<PendingCommit> commits;
+		synchronized (pendingCommits) {
+			commits = new ArrayList<>(pendingCommits);
+			pendingCommits.clear();
+		}
+		if (commits.isEmpty()) {
+			return;
+		}
+
+		long startTime = System.currentTimeMillis();
+		ExecutorService syncExecutor = Executors.newFixedThreadPool(Math.min(MAX_SYNC_THREADS, commits.size()));
+		try {
+			List<Future<Void>> syncTasks = new ArrayList<>();
+			for (PendingCommit commit : commits) {
+				syncTasks.add(syncExecutor.submit(() -> {
+					syncFile(commit.tmpPath);
+					return null;
+				}));
+			}
+			for (Future<Void> syncTask : syncTasks) {
+				syncTask.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while syncing downloaded files", e);
+		} finally {
+			syncExecutor.shutdownNow();
+		}
+
+		Set<Path> directories = new LinkedHashSet<>();
+		for (PendingCommit commit : commits) {
+			Files.move(commit.tmpPath, commit.destPath, StandardCopyOption.REPLACE_EXISTING);
+			directories.add(commit.destPath.getParent());
+		}
+		for (Path directory : directories) {
+			syncDirectory(directory);
+		}
+		LOGGER.info("Synced " + commits.size() + " downloaded files in " + (System.currentTimeMillis() - startTime) + "ms");
+	}
+
+	private static void syncFile(Path path) throws IOException {
+		// Opened for writing, as Windows requires write access to flush a file
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Syncs a directory, so that files moved into it are durable. This isn't possible on all platforms (e.g. Windows),
+	 * where directory entries are made durable by the filesystem instead.
+	 */
+	private static void syncDirectory(Path directory) {
+		if (directory == null) {
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException ignored) {
+			// Directories can't be synced on this platform
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package link.infra.jumploader.resolution.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Decides when a slow download should be hedged with a duplicate request. A download is slow if it has waited for it's
+ * first byte for slownessFactor times longer than the median of the other downloads, or if it's throughput is
+ * slownessFactor times lower than the median of the other downloads.
+ */
+public class HedgePolicy {
+	private static final long CHECK_INTERVAL_MILLIS = 250;
+	// Downloads aren't hedged until they have run for this long, so short downloads aren't duplicated
+	private static final long MIN_HEDGE_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+	// The number of other downloads needed to compare against
+	private static final int MIN_PEERS = 3;
+
+	private final DownloadWorkerManager<?> workerManager;
+	private final double slownessFactor;
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Jumploader download hedging");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public HedgePolicy(DownloadWorkerManager<?> workerManager, double slownessFactor) {
+		this.workerManager = workerManager;
+		this.slownessFactor = slownessFactor;
+	}
+
+	/**
+	 * Periodically checks the task with the given status, and calls startHedge (once) if it is slow. The returned future
+	 * should be cancelled once the task completes.
+	 */
+	public ScheduledFuture<?> monitor(DownloadWorkerManager.TaskStatus status, Runnable startHedge) {
+		AtomicBoolean hedged = new AtomicBoolean();
+		return scheduler.scheduleAtFixedRate(() -> {
+			if (!hedged.get() && !status.isComplete() && shouldHedge(status, System.nanoTime())) {
+				hedged.set(true);
+				startHedge.run();
+			}
+		}, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private boolean shouldHedge(DownloadWorkerManager.TaskStatus status, long now) {
+		boolean receivedData = status.hasReceivedData();
+		// Only check the download once it has been waiting, or receiving data, for long enough to measure it
+		long measuredTime = receivedData ? status.getTimeSinceFirstByteNanos(now) : status.getTimeToFirstByteNanos(now);
+		if (measuredTime < MIN_HEDGE_DELAY_NANOS) {
+			return false;
+		}
+		List<Long> peerTimesToFirstByte = new ArrayList<>();
+		List<Double> peerThroughputs = new ArrayList<>();
+		for (DownloadWorkerManager.TaskStatus peer : workerManager.getStartedTasks()) {
+			if (peer != status && peer.hasReceivedData()) {
+				peerTimesToFirstByte.add(peer.getTimeToFirstByteNanos(now));
+				peerThroughputs.add(peer.getThroughput(now));
+			}
+		}
+		if (peerTimesToFirstByte.size() < MIN_PEERS) {
+			return false;
+		}
+
+		if (!receivedData) {
+			return measuredTime > median(peerTimesToFirstByte) * slownessFactor;
+		}
+		return status.getThroughput(now) * slownessFactor < median(peerThroughputs);
+	}
+
+	private static <T extends Number & Comparable<T>> double median(List<T> values) {
+		Collections.sort(values);
+		int middle = values.size() / 2;
+		if (values.size() % 2 == 1) {
+			return values.get(middle).doubleValue();
+		}
+		return (values.get(middle - 1).doubleValue() + values.get(middle).doubleValue()) / 2;
+	}
+
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+}
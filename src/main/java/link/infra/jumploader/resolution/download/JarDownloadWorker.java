@@ -0,0 +1,512 @@
+package link.infra.jumploader.resolution.download;
+
+import link.infra.jumploader.resolution.ResolvableJar;
+import link.infra.jumploader.resolution.download.verification.HashVerifier;
+import link.infra.jumploader.resolution.download.verification.InvalidHashException;
+import link.infra.jumploader.util.BandwidthLimiter;
+import link.infra.jumploader.util.HostConnectionLimiter;
+import link.infra.jumploader.util.HttpTransport;
+import link.infra.jumploader.util.TransportRequest;
+import link.infra.jumploader.util.TransportResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Downloads a ResolvableJar to it's path, through a .tmp file. If a .tmp file is left over from an interrupted
+ * download, the download is resumed from the end of it using a HTTP Range request.
+ * Failed downloads are retried according to the RetryPolicy, from each of the jar's mirrors in turn. If hedging is
+ * enabled, slow downloads are raced against a second request, and the first to complete is kept.
+ * Large files are split into segments, which are downloaded in parallel by other workers in the DownloadWorkerManager.
+ */
+public class JarDownloadWorker implements DownloadWorkerManager.DownloadWorker<URL> {
+	private static final Logger LOGGER = LogManager.getLogger();
+
+	// Files larger than this are downloaded in segments, if the server supports Range requests
+	private static final long SEGMENTED_DOWNLOAD_THRESHOLD = 8 * 1024 * 1024;
+	private static final int SEGMENT_COUNT = 4;
+
+	private final ResolvableJar jar;
+	private final DownloadWorkerManager<?> workerManager;
+	private final HttpTransport transport;
+	private final FileCommitter fileCommitter;
+	private final RetryPolicy retryPolicy;
+	// Null if hedging is disabled
+	private final HedgePolicy hedgePolicy;
+	// The URL of the current attempt, which is either the jar's URL or one of it's mirrors
+	private volatile URL sourceUrl;
+	// The requests of the current attempt, which are cancelled if a hedged request completes first
+	private volatile Attempt attempt;
+	// Set by whichever request commits the file first, so a hedged request can't replace a file that has been committed
+	private final AtomicBoolean committed = new AtomicBoolean();
+
+	public JarDownloadWorker(ResolvableJar jar, DownloadWorkerManager<?> workerManager, HttpTransport transport, FileCommitter fileCommitter, RetryPolicy retryPolicy, HedgePolicy hedgePolicy) {
+		this.jar = jar;
+		this.workerManager = workerManager;
+		this.transport = transport;
+		this.fileCommitter = fileCommitter;
+		this.retryPolicy = retryPolicy;
+		this.hedgePolicy = hedgePolicy;
+		this.sourceUrl = jar.url;
+	}
+
+	public static Path getTmpPath(Path path) {
+		return path.resolveSibling(path.getFileName() + ".tmp");
+	}
+
+	/**
+	 * Segmented downloads are written out of order, so they can't be resumed from the end of the file like .tmp files
+	 */
+	private static Path getSegmentedTmpPath(Path path) {
+		return path.resolveSibling(path.getFileName() + ".segments.tmp");
+	}
+
+	@Override
+	public String getName() {
+		return jar.friendlyName;
+	}
+
+	@Override
+	public URL start(DownloadWorkerManager.TaskStatus status) throws IOException {
+		List<URL> sourceUrls = retryPolicy.getSourceUrls(jar.url);
+		int retryCount = 0;
+		while (true) {
+			// Each retry uses the next mirror, wrapping around to the original URL
+			sourceUrl = sourceUrls.get(retryCount % sourceUrls.size());
+			attempt = new Attempt(status);
+			committed.set(false);
+			try {
+				if (hedgePolicy != null) {
+					// Hedged requests go to the next mirror, or the same URL if there are no mirrors
+					downloadHedged(status, sourceUrls.get((retryCount + 1) % sourceUrls.size()));
+				} else {
+					download(status);
+				}
+				return jar.url;
+			} catch (IOException e) {
+				// SocketTimeoutException is an InterruptedIOException, but timeouts should be retried
+				if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+					throw e;
+				}
+				if (attempt.stalled) {
+					e = new IOException("Download of " + jar.friendlyName + " stalled", e);
+				}
+				if (!retryPolicy.tryRetry(retryCount)) {
+					throw e;
+				}
+				retryCount++;
+				LOGGER.warn("Failed to download " + jar.friendlyName + " from " + sourceUrl + " (" + e.getMessage() + "), retrying from "
+					+ sourceUrls.get(retryCount % sourceUrls.size()));
+				retryPolicy.backoff(retryCount);
+			}
+		}
+	}
+
+	@Override
+	public void stalled(DownloadWorkerManager.TaskStatus status) {
+		Attempt currentAttempt = attempt;
+		// Workers waiting for a connection to the host haven't stalled
+		if (currentAttempt != null && currentAttempt.requestSent) {
+			LOGGER.warn("Download of " + jar.friendlyName + " has stalled, restarting it");
+			currentAttempt.stalled = true;
+			currentAttempt.cancel();
+		}
+	}
+
+	/**
+	 * Downloads the file, and sends a hedged request for the whole file to hedgeUrl if the HedgePolicy finds that the
+	 * download is slow. Whichever request completes first (with a valid hash) is kept, and the other is cancelled.
+	 */
+	private void downloadHedged(DownloadWorkerManager.TaskStatus status, URL hedgeUrl) throws IOException {
+		// The hedged request isn't tracked by the stall detection, as it doesn't report progress
+		Attempt hedgeAttempt = new Attempt(null);
+		AtomicReference<FutureTask<Void>> hedgeTask = new AtomicReference<>();
+		ScheduledFuture<?> monitor = hedgePolicy.monitor(status, () -> {
+			synchronized (hedgeTask) {
+				if (!committed.get()) {
+					LOGGER.info("Download of " + jar.friendlyName + " is slow, sending a hedged request to " + hedgeUrl);
+					hedgeTask.set(workerManager.queueSubtask(() -> {
+						downloadHedge(status, hedgeUrl, hedgeAttempt);
+						return null;
+					}));
+				}
+			}
+		});
+
+		IOException failure = null;
+		try {
+			download(status);
+		} catch (IOException e) {
+			failure = e;
+		}
+		FutureTask<Void> hedge;
+		synchronized (hedgeTask) {
+			monitor.cancel(false);
+			hedge = hedgeTask.get();
+		}
+		if (hedge == null) {
+			if (failure != null) {
+				throw failure;
+			}
+			return;
+		}
+		if (failure == null) {
+			// The hedged request doesn't need to be waited for, as it can't commit the file
+			hedgeAttempt.cancel();
+			return;
+		}
+		try {
+			DownloadWorkerManager.awaitSubtask(hedge);
+		} catch (IOException e) {
+			failure.addSuppressed(e);
+			throw failure;
+		} catch (InterruptedException e) {
+			hedgeAttempt.cancel();
+			InterruptedIOException interruptedException = new InterruptedIOException("Interrupted while downloading " + hedgeUrl);
+			interruptedException.initCause(e);
+			throw interruptedException;
+		}
+		// The hedged request completed the download, so the cancelled download can't be resumed
+		Files.deleteIfExists(getTmpPath(jar.path));
+		Files.deleteIfExists(getSegmentedTmpPath(jar.path));
+	}
+
+	/**
+	 * Downloads the whole file from hedgeUrl into it's own .tmp file, and cancels the original download if it is
+	 * committed first
+	 */
+	private void downloadHedge(DownloadWorkerManager.TaskStatus status, URL hedgeUrl, Attempt hedgeAttempt) throws IOException {
+		Path hedgeTmpPath = jar.path.resolveSibling(jar.path.getFileName() + ".hedge.tmp");
+		long length;
+		try {
+			try (HostConnectionLimiter.Permit ignored = HostConnectionLimiter.acquire(hedgeUrl, HostConnectionLimiter.Priority.BULK);
+				 TransportResponse res = hedgeAttempt.send(createRequest(hedgeUrl))) {
+				length = res.getContentLength();
+				if (length != -1) {
+					checkExpectedSize(length, hedgeUrl);
+				} else {
+					length = jar.expectedSize;
+				}
+				HashVerifier verifier = jar.hashVerifier != null ? jar.hashVerifier.getBufferVerifier() : null;
+				try (InputStream in = res.getBody(); AsynchronousFileChannel channel = AsynchronousFileChannel.open(hedgeTmpPath,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+					// Progress isn't counted, as the original download is still reporting progress. The hedged request
+					// duplicates the original, so it is limited to the background bandwidth.
+					length = ChannelTransfer.transfer(in, channel, 0, length, true, verifier, null, BandwidthLimiter.Priority.BACKGROUND);
+				}
+				if (verifier != null) {
+					verifier.verify();
+				}
+			}
+			commit(hedgeTmpPath);
+		} catch (IOException e) {
+			Files.deleteIfExists(hedgeTmpPath);
+			throw e;
+		}
+		attempt.cancel();
+		// Only the hedged request's bytes count towards the progress, replacing those of the cancelled download
+		status.setExpectedLength(length);
+		status.setDownloaded(length);
+	}
+
+	/**
+	 * Commits a downloaded file, unless another request has already committed it
+	 */
+	private void commit(Path tmpPath) throws IOException {
+		if (!committed.compareAndSet(false, true)) {
+			Files.deleteIfExists(tmpPath);
+			throw new IOException("Download of " + jar.friendlyName + " was completed by another request");
+		}
+		fileCommitter.commit(tmpPath, jar.path);
+	}
+
+	private void download(DownloadWorkerManager.TaskStatus status) throws IOException {
+		Files.createDirectories(jar.path.getParent());
+		Path tmpPath = getTmpPath(jar.path);
+		// Segments of an interrupted segmented download can't be reused
+		Files.deleteIfExists(getSegmentedTmpPath(jar.path));
+
+		long existingLength = Files.exists(tmpPath) ? Files.size(tmpPath) : 0;
+		if (existingLength > 0) {
+			try {
+				if (downloadResumed(status, tmpPath, existingLength)) {
+					return;
+				}
+			} catch (InvalidHashException e) {
+				// The existing data may have been corrupted, so try again from the start
+				LOGGER.warn("Resumed download of " + sourceUrl + " failed hash verification, downloading again");
+			}
+		}
+
+		downloadFull(status, tmpPath);
+	}
+
+	private TransportRequest createRequest() {
+		return createRequest(sourceUrl);
+	}
+
+	private static TransportRequest createRequest(URL url) {
+		TransportRequest request = TransportRequest.get(url).header("Accept", "application/octet-stream");
+		request.timeoutBodyReads = false;
+		return request;
+	}
+
+	/**
+	 * Attempts to resume the download from the end of the existing .tmp file. Returns false if the server doesn't
+	 * support resuming this download, in which case nothing has been written.
+	 */
+	private boolean downloadResumed(DownloadWorkerManager.TaskStatus status, Path tmpPath, long existingLength) throws IOException {
+		if (jar.expectedSize != -1 && existingLength >= jar.expectedSize) {
+			// Nothing is left to resume (e.g. the process was killed before the file was moved into place)
+			return false;
+		}
+		try (HostConnectionLimiter.Permit ignored = HostConnectionLimiter.acquire(sourceUrl, HostConnectionLimiter.Priority.BULK);
+			 TransportResponse res = attempt.send(createRequest().header("Range", "bytes=" + existingLength + "-"))) {
+			if (res.getStatusCode() != HttpURLConnection.HTTP_PARTIAL || !rangeStartsAt(res.getHeader("Content-Range"), existingLength)) {
+				// The Range header was ignored or not satisfiable (or this isn't HTTP), fall back to downloading the whole file
+				return false;
+			}
+
+			HashVerifier verifier = null;
+			if (jar.hashVerifier != null) {
+				verifier = jar.hashVerifier.getBufferVerifier();
+				ChannelTransfer.hashFile(tmpPath, existingLength, verifier);
+			}
+
+			LOGGER.info("Resuming download of " + jar.friendlyName + " from " + existingLength + " bytes");
+			long remainingLength = res.getContentLength();
+			if (remainingLength != -1) {
+				checkExpectedSize(existingLength + remainingLength);
+			} else if (jar.expectedSize != -1) {
+				remainingLength = jar.expectedSize - existingLength;
+			}
+			if (remainingLength != -1) {
+				status.setExpectedLength(existingLength + remainingLength);
+			}
+			// The count may include a previous attempt
+			status.resetDownloaded();
+			status.addDownloaded(existingLength);
+			writeAndMove(res.getBody(), tmpPath, existingLength, remainingLength, verifier, status);
+			return true;
+		}
+	}
+
+	private void downloadFull(DownloadWorkerManager.TaskStatus status, Path tmpPath) throws IOException {
+		status.resetDownloaded();
+		try (HostConnectionLimiter.Permit permit = HostConnectionLimiter.acquire(sourceUrl, HostConnectionLimiter.Priority.BULK);
+			 TransportResponse res = attempt.send(createRequest())) {
+			long contentLength = res.getContentLength();
+			if (contentLength != -1) {
+				checkExpectedSize(contentLength);
+			} else {
+				contentLength = jar.expectedSize;
+			}
+			if (contentLength >= SEGMENTED_DOWNLOAD_THRESHOLD && res.getStatusCode() == HttpURLConnection.HTTP_OK && "bytes".equalsIgnoreCase(res.getHeader("Accept-Ranges"))) {
+				downloadSegmented(res, permit, status, contentLength);
+				return;
+			}
+			if (contentLength != -1) {
+				status.setExpectedLength(contentLength);
+			}
+			writeAndMove(res.getBody(), tmpPath, 0, contentLength, jar.hashVerifier != null ? jar.hashVerifier.getBufferVerifier() : null, status);
+		}
+	}
+
+	/**
+	 * Fails the download before the body is read if the server reports a different size to the metadata
+	 */
+	private void checkExpectedSize(long size) throws IOException {
+		checkExpectedSize(size, sourceUrl);
+	}
+
+	private void checkExpectedSize(long size, URL url) throws IOException {
+		if (jar.expectedSize != -1 && size != jar.expectedSize) {
+			throw new IOException("Server returned " + size + " bytes for " + url + ", expected " + jar.expectedSize + " bytes");
+		}
+	}
+
+	/**
+	 * Writes src to the .tmp file from the given position, truncating anything after it, and moves it into place if the
+	 * hash is valid. If length isn't -1, the download fails as soon as src is found to be shorter or longer than length.
+	 * The .tmp file is written in order, so if the process is killed it's size is still the amount of data written, which
+	 * the download is resumed from.
+	 */
+	private void writeAndMove(InputStream src, Path tmpPath, long position, long length, HashVerifier verifier, DownloadWorkerManager.TaskStatus status) throws IOException {
+		try {
+			try (InputStream in = src; AsynchronousFileChannel channel = AsynchronousFileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				channel.truncate(position);
+				ChannelTransfer.transfer(in, channel, position, length, true, verifier, status, BandwidthLimiter.Priority.FOREGROUND);
+			}
+			if (verifier != null) {
+				verifier.verify();
+			}
+			commit(tmpPath);
+		} catch (InvalidHashException e) {
+			// Don't delete the file if a hedged request has already replaced it
+			if (!committed.get()) {
+				Files.deleteIfExists(jar.path);
+			}
+			Files.deleteIfExists(tmpPath);
+			throw e;
+		}
+	}
+
+	/**
+	 * Downloads the file in SEGMENT_COUNT parts: the first is read from the existing full request, and the others are
+	 * requested with Range requests and queued as subtasks. All parts are written at their positions in the same file,
+	 * which is verified once all the segments are complete. Free space is checked before the download starts, see
+	 * DiskSpaceCheck.
+	 */
+	private void downloadSegmented(TransportResponse firstRes, HostConnectionLimiter.Permit firstResPermit, DownloadWorkerManager.TaskStatus status, long contentLength) throws IOException {
+		Path segmentedTmpPath = getSegmentedTmpPath(jar.path);
+		long segmentLength = (contentLength + SEGMENT_COUNT - 1) / SEGMENT_COUNT;
+		status.setExpectedLength(contentLength);
+		LOGGER.info("Downloading " + jar.friendlyName + " in " + SEGMENT_COUNT + " segments");
+
+		List<FutureTask<Void>> segmentTasks = new ArrayList<>();
+		try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(segmentedTmpPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			for (long start = segmentLength; start < contentLength; start += segmentLength) {
+				long segmentStart = start;
+				long segmentEnd = Math.min(contentLength, start + segmentLength) - 1;
+				segmentTasks.add(workerManager.queueSubtask(() -> {
+					downloadSegment(channel, status, segmentStart, segmentEnd);
+					return null;
+				}));
+			}
+
+			try {
+				// The first segment is read from the original request, which is closed once it is complete
+				try (InputStream res = firstRes.getBody()) {
+					ChannelTransfer.transfer(res, channel, 0, segmentLength, false, null, status, BandwidthLimiter.Priority.FOREGROUND);
+				} finally {
+					firstRes.close();
+					// Release the connection before waiting, so the other segments can use it
+					firstResPermit.close();
+				}
+				for (FutureTask<Void> task : segmentTasks) {
+					DownloadWorkerManager.awaitSubtask(task);
+				}
+			} catch (InterruptedException e) {
+				cancelAll(segmentTasks);
+				// Thrown as an InterruptedIOException, so it isn't retried
+				InterruptedIOException interruptedException = new InterruptedIOException("Interrupted while downloading " + sourceUrl);
+				interruptedException.initCause(e);
+				throw interruptedException;
+			} catch (IOException | RuntimeException e) {
+				cancelAll(segmentTasks);
+				throw e;
+			}
+		} catch (IOException e) {
+			Files.deleteIfExists(segmentedTmpPath);
+			throw e;
+		}
+
+		if (jar.hashVerifier != null) {
+			HashVerifier verifier = jar.hashVerifier.getBufferVerifier();
+			try {
+				ChannelTransfer.hashFile(segmentedTmpPath, -1, verifier);
+				verifier.verify();
+			} catch (InvalidHashException e) {
+				Files.deleteIfExists(segmentedTmpPath);
+				throw e;
+			}
+		}
+		commit(segmentedTmpPath);
+	}
+
+	private static void cancelAll(List<FutureTask<Void>> tasks) {
+		for (FutureTask<Void> task : tasks) {
+			task.cancel(false);
+		}
+	}
+
+	private void downloadSegment(AsynchronousFileChannel channel, DownloadWorkerManager.TaskStatus status, long start, long end) throws IOException {
+		// The request for the whole file has already been sent, so waiting for a connection counts as activity - otherwise
+		// the download would be restarted as stalled while segments wait for other downloads to the same host
+		try (HostConnectionLimiter.Permit ignored = HostConnectionLimiter.acquire(sourceUrl, HostConnectionLimiter.Priority.BULK, status::markActive);
+			 TransportResponse res = attempt.send(createRequest().header("Range", "bytes=" + start + "-" + end))) {
+			if (res.getStatusCode() != HttpURLConnection.HTTP_PARTIAL || !rangeStartsAt(res.getHeader("Content-Range"), start)) {
+				throw new IOException("Server didn't return the requested range of " + sourceUrl);
+			}
+			try (InputStream body = res.getBody()) {
+				ChannelTransfer.transfer(body, channel, start, end - start + 1, true, null, status, BandwidthLimiter.Priority.FOREGROUND);
+			}
+		}
+	}
+
+	/**
+	 * Tracks the responses of a download attempt, so it can be cancelled from another thread by aborting them
+	 */
+	private class Attempt {
+		// The status to report activity to when sending requests, or null
+		private final DownloadWorkerManager.TaskStatus status;
+		private final Set<TransportResponse> responses = ConcurrentHashMap.newKeySet();
+		private volatile boolean cancelled = false;
+		private volatile boolean requestSent = false;
+		private volatile boolean stalled = false;
+
+		private Attempt(DownloadWorkerManager.TaskStatus status) {
+			this.status = status;
+		}
+
+		private TransportResponse send(TransportRequest request) throws IOException {
+			if (status != null) {
+				// Waiting for a connection permit isn't a stall, so the stall timeout starts from here
+				status.markActive();
+			}
+			requestSent = true;
+			TransportResponse res = transport.send(request);
+			responses.add(res);
+			if (cancelled) {
+				res.abort();
+				throw new IOException("Download of " + jar.friendlyName + " was cancelled");
+			}
+			return res;
+		}
+
+		private void cancel() {
+			cancelled = true;
+			for (TransportResponse res : responses) {
+				try {
+					res.abort();
+				} catch (IOException ignored) {
+					// The request fails either way
+				}
+			}
+		}
+	}
+
+	private static boolean rangeStartsAt(String contentRange, long start) {
+		// Content-Range: bytes <start>-<end>/<length>
+		if (contentRange == null || !contentRange.startsWith("bytes ")) {
+			return false;
+		}
+		int dashIndex = contentRange.indexOf('-');
+		if (dashIndex < 0) {
+			return false;
+		}
+		try {
+			return Long.parseLong(contentRange.substring(6, dashIndex).trim()) == start;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+}
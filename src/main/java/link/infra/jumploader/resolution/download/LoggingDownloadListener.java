@@ -0,0 +1,59 @@
+package link.infra.jumploader.resolution.download;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs download events, overall progress (at most once every PROGRESS_LOG_INTERVAL_MILLIS), and a summary of the
+ * downloads once they are complete.
+ */
+public class LoggingDownloadListener implements DownloadListener<Object> {
+	private static final Logger LOGGER = LogManager.getLogger();
+	private static final long PROGRESS_LOG_INTERVAL_MILLIS = 500;
+
+	private final DownloadWorkerManager<?> workerManager;
+	private final AtomicLong lastProgressLog = new AtomicLong();
+	private final AtomicLong firstStartTime = new AtomicLong(-1);
+
+	public LoggingDownloadListener(DownloadWorkerManager<?> workerManager) {
+		this.workerManager = workerManager;
+	}
+
+	@Override
+	public void downloadStarted(DownloadWorkerManager.TaskStatus status) {
+		firstStartTime.compareAndSet(-1, System.currentTimeMillis());
+	}
+
+	@Override
+	public void downloadProgress(DownloadWorkerManager.TaskStatus status) {
+		long now = System.currentTimeMillis();
+		long lastLog = lastProgressLog.get();
+		// Only one thread logs each interval
+		if (now - lastLog >= PROGRESS_LOG_INTERVAL_MILLIS && lastProgressLog.compareAndSet(lastLog, now)) {
+			LOGGER.info("Progress: " + (workerManager.getWorkerProgress() * 100) + "%");
+		}
+	}
+
+	@Override
+	public void downloadCompleted(DownloadWorkerManager.TaskStatus status, Object result) {
+		LOGGER.info("Downloaded successfully: " + status.getName());
+	}
+
+	@Override
+	public void downloadFailed(DownloadWorkerManager.TaskStatus status, Throwable failure) {
+		LOGGER.warn("Failed to download " + status.getName() + ": " + failure.getMessage());
+	}
+
+	public void logSummary() {
+		long startTime = firstStartTime.get();
+		if (startTime == -1) {
+			return;
+		}
+		long elapsedMillis = Math.max(1, System.currentTimeMillis() - startTime);
+		long totalBytes = workerManager.getTotalDownloaded();
+		LOGGER.info(String.format("Downloaded %d files (%.2f MiB) in %.2f seconds, %.2f MiB/s", workerManager.getCompletedCount(),
+			totalBytes / (1024.0 * 1024.0), elapsedMillis / 1000.0, (totalBytes / (1024.0 * 1024.0)) / (elapsedMillis / 1000.0)));
+	}
+}
@@ -0,0 +1,92 @@
+package link.infra.jumploader.resolution.download;
+
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether failed downloads are retried, how long to wait before retrying, and which mirrors to retry from.
+ * Retries are limited per download, and by a budget shared by all downloads, so a broken connection fails the launch
+ * instead of retrying every file.
+ */
+public class RetryPolicy {
+	private static final long BASE_BACKOFF_MILLIS = 500;
+	private static final long MAX_BACKOFF_MILLIS = 8000;
+
+	private final int maxRetriesPerDownload;
+	private final AtomicInteger remainingBudget;
+	private final Map<String, List<String>> mirrors;
+
+	/**
+	 * Creates a RetryPolicy. mirrors maps base URLs to an ordered list of base URLs that serve the same files, which are
+	 * used in turn when retrying a download.
+	 */
+	public RetryPolicy(int maxRetriesPerDownload, int retryBudget, Map<String, List<String>> mirrors) {
+		this.maxRetriesPerDownload = maxRetriesPerDownload;
+		this.remainingBudget = new AtomicInteger(retryBudget);
+		this.mirrors = mirrors != null ? mirrors : Collections.emptyMap();
+	}
+
+	/**
+	 * Gets the URLs to download a file from, in the order they should be tried: the original URL first, then the same
+	 * path on each of the configured mirrors
+	 */
+	public List<URL> getSourceUrls(URL url) {
+		List<URL> urls = new ArrayList<>();
+		urls.add(url);
+		String urlString = url.toString();
+		for (Map.Entry<String, List<String>> entry : mirrors.entrySet()) {
+			if (entry.getValue() == null || !urlString.startsWith(entry.getKey())) {
+				continue;
+			}
+			String path = urlString.substring(entry.getKey().length());
+			for (String mirror : entry.getValue()) {
+				try {
+					urls.add(new URL(mirror + path));
+				} catch (MalformedURLException e) {
+					throw new RuntimeException("Invalid mirror URL: " + mirror, e);
+				}
+			}
+		}
+		return urls;
+	}
+
+	/**
+	 * Returns true if a download that has already been retried retryCount times can be retried again, taking a retry
+	 * from the shared budget
+	 */
+	public boolean tryRetry(int retryCount) {
+		if (retryCount >= maxRetriesPerDownload) {
+			return false;
+		}
+		while (true) {
+			int budget = remainingBudget.get();
+			if (budget <= 0) {
+				return false;
+			}
+			if (remainingBudget.compareAndSet(budget, budget - 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Waits before the given retry (starting at 1). The delay doubles with each retry, and is randomised so downloads that
+	 * failed together don't all retry at the same time.
+	 */
+	public void backoff(int retry) throws InterruptedIOException {
+		long maxDelay = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(retry - 1, 16));
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(maxDelay / 2, maxDelay + 1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry download");
+		}
+	}
+}
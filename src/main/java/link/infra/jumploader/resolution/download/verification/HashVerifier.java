@@ -0,0 +1,19 @@
+package link.infra.jumploader.resolution.download.verification;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Verifies the hash of data given to it in ByteBuffers, so data can be hashed in place (e.g. in a direct buffer that is
+ * then written to a file, or a memory mapped file) without being copied through a stream
+ */
+public interface HashVerifier {
+	/**
+	 * Updates the hash with the remaining bytes of the buffer, without changing it's position
+	 */
+	void update(ByteBuffer data);
+
+	/**
+	 * Checks the hash of all the data given to update, throwing an InvalidHashException if it doesn't match
+	 */
+	void verify() throws InvalidHashException;
+}
@@ -1,7 +1,15 @@
 package link.infra.jumploader.resolution.download.verification;
 
-import java.io.InputStream;
-
 public interface HashVerifierProvider {
-	InputStream getVerifier(InputStream src);
+	/**
+	 * Gets a verifier for data in ByteBuffers - resumed downloads are verified by giving it the existing data first
+	 */
+	HashVerifier getBufferVerifier();
+
+	/**
+	 * Gets the hash that data is verified against, if it is a SHA-1 hash, otherwise null
+	 */
+	default String getSha1Hash() {
+		return null;
+	}
 }
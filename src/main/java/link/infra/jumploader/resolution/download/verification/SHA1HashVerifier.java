@@ -0,0 +1,52 @@
+package link.infra.jumploader.resolution.download.verification;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+public class SHA1HashVerifier implements HashVerifier {
+	private final byte[] compareToHash;
+	private final MessageDigest digest;
+	private final String downloadUrl;
+
+	public static HashVerifierProvider verifier(String compareToHash, String downloadUrl) {
+		return new HashVerifierProvider() {
+			@Override
+			public HashVerifier getBufferVerifier() {
+				return new SHA1HashVerifier(compareToHash, downloadUrl);
+			}
+
+			@Override
+			public String getSha1Hash() {
+				return compareToHash;
+			}
+		};
+	}
+
+	public SHA1HashVerifier(String compareToHash, String downloadUrl) {
+		this.downloadUrl = downloadUrl;
+		try {
+			this.compareToHash = Hex.decodeHex(compareToHash.toCharArray());
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException | DecoderException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void update(ByteBuffer data) {
+		digest.update(data.duplicate());
+	}
+
+	@Override
+	public void verify() throws InvalidHashException {
+		byte[] result = digest.digest();
+		if (!Arrays.equals(result, compareToHash)) {
+			throw new InvalidHashException(Hex.encodeHexString(compareToHash), Hex.encodeHexString(result), downloadUrl);
+		}
+	}
+}
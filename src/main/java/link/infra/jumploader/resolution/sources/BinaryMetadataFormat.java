@@ -0,0 +1,197 @@
+package link.infra.jumploader.resolution.sources;
+
+import com.google.gson.*;
+import com.google.gson.internal.LazilyParsedNumber;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of JSON trees, used for cached metadata. Files start with a header of a magic number and a
+ * format version, followed by the tree: each value is a one byte tag, strings and numbers are UTF-8 prefixed with their
+ * length, and arrays and objects are prefixed with their number of elements. Lengths are encoded as varints.
+ * Files are read into memory in one go rather than mapped, as cached metadata is small enough that mapping it costs more
+ * than it saves, and files are written to a temporary file which is then moved into place.
+ */
+class BinaryMetadataFormat {
+	private BinaryMetadataFormat() {}
+
+	private static final int MAGIC = 0x4A4C4D43; // JLMC
+	// Increment when the encoding changes - files with other versions are treated as missing
+	private static final int VERSION = 1;
+
+	private static final byte TAG_NULL = 0;
+	private static final byte TAG_FALSE = 1;
+	private static final byte TAG_TRUE = 2;
+	private static final byte TAG_NUMBER = 3;
+	private static final byte TAG_STRING = 4;
+	private static final byte TAG_ARRAY = 5;
+	private static final byte TAG_OBJECT = 6;
+
+	/**
+	 * Reads the tree stored in the given file, or returns null if it was written with a different format version. Files
+	 * without the header are parsed as JSON, as the cache was stored as JSON in previous versions.
+	 */
+	static JsonElement read(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+			while (buf.hasRemaining() && channel.read(buf) >= 0) {
+				// Read the whole file
+			}
+			buf.flip();
+			if (buf.remaining() < 8 || buf.getInt(0) != MAGIC) {
+				byte[] bytes = new byte[buf.remaining()];
+				buf.get(bytes);
+				return new JsonParser().parse(new String(bytes, StandardCharsets.UTF_8));
+			}
+			buf.position(4);
+			if (buf.getInt() != VERSION) {
+				return null;
+			}
+			return readElement(buf);
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Failed to read cached metadata " + path + ", it is truncated or corrupt", e);
+		} catch (JsonParseException e) {
+			throw new IOException("Failed to parse cached metadata " + path, e);
+		}
+	}
+
+	static void write(Path path, JsonElement element) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeInt(out, MAGIC);
+		writeInt(out, VERSION);
+		writeElement(out, element);
+
+		Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.write(tmpPath, out.toByteArray());
+		try {
+			Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static JsonElement readElement(ByteBuffer buf) {
+		byte tag = buf.get();
+		switch (tag) {
+			case TAG_NULL:
+				return JsonNull.INSTANCE;
+			case TAG_FALSE:
+				return new JsonPrimitive(false);
+			case TAG_TRUE:
+				return new JsonPrimitive(true);
+			case TAG_NUMBER:
+				return new JsonPrimitive(new LazilyParsedNumber(readString(buf)));
+			case TAG_STRING:
+				return new JsonPrimitive(readString(buf));
+			case TAG_ARRAY: {
+				int size = readVarInt(buf);
+				JsonArray array = new JsonArray();
+				for (int i = 0; i < size; i++) {
+					array.add(readElement(buf));
+				}
+				return array;
+			}
+			case TAG_OBJECT: {
+				int size = readVarInt(buf);
+				JsonObject object = new JsonObject();
+				for (int i = 0; i < size; i++) {
+					String name = readString(buf);
+					object.add(name, readElement(buf));
+				}
+				return object;
+			}
+			default:
+				throw new IllegalArgumentException("Unknown tag " + tag);
+		}
+	}
+
+	private static void writeElement(OutputStream out, JsonElement element) throws IOException {
+		if (element == null || element.isJsonNull()) {
+			out.write(TAG_NULL);
+		} else if (element.isJsonPrimitive()) {
+			JsonPrimitive primitive = element.getAsJsonPrimitive();
+			if (primitive.isBoolean()) {
+				out.write(primitive.getAsBoolean() ? TAG_TRUE : TAG_FALSE);
+			} else if (primitive.isNumber()) {
+				out.write(TAG_NUMBER);
+				writeString(out, primitive.getAsNumber().toString());
+			} else {
+				out.write(TAG_STRING);
+				writeString(out, primitive.getAsString());
+			}
+		} else if (element.isJsonArray()) {
+			JsonArray array = element.getAsJsonArray();
+			out.write(TAG_ARRAY);
+			writeVarInt(out, array.size());
+			for (JsonElement child : array) {
+				writeElement(out, child);
+			}
+		} else {
+			JsonObject object = element.getAsJsonObject();
+			out.write(TAG_OBJECT);
+			writeVarInt(out, object.entrySet().size());
+			for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+				writeString(out, entry.getKey());
+				writeElement(out, entry.getValue());
+			}
+		}
+	}
+
+	private static String readString(ByteBuffer buf) {
+		int length = readVarInt(buf);
+		if (length > buf.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(OutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static int readVarInt(ByteBuffer buf) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = buf.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0) {
+					throw new IllegalArgumentException("Invalid length " + value);
+				}
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Varint is too long");
+	}
+
+	private static void writeVarInt(OutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static void writeInt(OutputStream out, int value) throws IOException {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+}
@@ -4,17 +4,21 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import link.infra.jumploader.resolution.ResolvableJar;
-import link.infra.jumploader.resolution.download.verification.SHA1HashingInputStream;
+import link.infra.jumploader.resolution.download.verification.SHA1HashVerifier;
+import link.infra.jumploader.util.HashMemoStore;
 import link.infra.jumploader.util.RequestUtils;
 import link.infra.jumploader.util.Side;
 
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 public class FabricJarSource implements ResolvableJarSource<FabricJarSource.FabricInvalidationKey> {
 	public static class FabricInvalidationKey implements MetadataCacheHelper.InvalidationKey<FabricInvalidationKey> {
@@ -33,6 +37,20 @@ public class FabricJarSource implements ResolvableJarSource<FabricJarSource.Fabr
 			return equals(key) && key.pinnedFabricVersion != null;
 		}
 
+		@Override
+		public boolean isUsableWhenStale(FabricInvalidationKey key) {
+			// The loader version may differ if it hasn't been pinned yet
+			return Objects.equals(gameVersion, key.gameVersion) && side == key.side &&
+				(pinnedFabricVersion == null || pinnedFabricVersion.equals(key.pinnedFabricVersion));
+		}
+
+		@Override
+		public boolean isUsableFromLockfile(FabricInvalidationKey key) {
+			// If no loader version is pinned, use the version pinned by the lockfile - the configuration isn't changed, so
+			// the loader is updated once the lockfile is deleted
+			return key.pinnedFabricVersion != null && isUsableWhenStale(key);
+		}
+
 		@Override
 		public boolean equals(Object o) {
 			if (this == o) return true;
@@ -53,11 +71,13 @@ public class FabricJarSource implements ResolvableJarSource<FabricJarSource.Fabr
 		public final String mavenPath;
 		public final URL source;
 		public final String hash;
+		public final long size;
 
-		private FabricLibraryJar(String mavenPath, URL source, String hash) {
+		private FabricLibraryJar(String mavenPath, URL source, String hash, long size) {
 			this.mavenPath = mavenPath;
 			this.source = source;
 			this.hash = hash;
+			this.size = size;
 		}
 	}
 
@@ -110,22 +130,22 @@ public class FabricJarSource implements ResolvableJarSource<FabricJarSource.Fabr
 
 				FabricMetadata newMetadata = new FabricMetadata(mainClass.get(side.name).getAsString());
 
+				// Collect all the libraries first, so their hashes and sizes can be retrieved concurrently
+				List<String> mavenPaths = new ArrayList<>();
+				List<URL> mavenUrls = new ArrayList<>();
+
 				String loaderMaven = latestLoaderData.getAsJsonObject("loader").get("maven").getAsString();
-				URL loaderMavenUrl = RequestUtils.resolveMavenPath(FABRIC_MAVEN, loaderMaven).toURL();
-				newMetadata.libs.add(new FabricLibraryJar(loaderMaven, loaderMavenUrl, RequestUtils.getSha1Hash(loaderMavenUrl)));
+				mavenPaths.add(loaderMaven);
+				mavenUrls.add(RequestUtils.resolveMavenPath(FABRIC_MAVEN, loaderMaven).toURL());
 				String intermediaryMaven = latestLoaderData.getAsJsonObject("intermediary").get("maven").getAsString();
-				URL intermediaryMavenUrl = RequestUtils.resolveMavenPath(FABRIC_MAVEN, intermediaryMaven).toURL();
-				newMetadata.libs.add(new FabricLibraryJar(intermediaryMaven, intermediaryMavenUrl, RequestUtils.getSha1Hash(intermediaryMavenUrl)));
+				mavenPaths.add(intermediaryMaven);
+				mavenUrls.add(RequestUtils.resolveMavenPath(FABRIC_MAVEN, intermediaryMaven).toURL());
 
 				JsonObject libraries = launcherMeta.getAsJsonObject("libraries");
 				for (JsonElement library : libraries.getAsJsonArray("common")) {
 					JsonObject libraryObj = library.getAsJsonObject();
-					URL libUrl = RequestUtils.resolveMavenPath(new URI(libraryObj.get("url").getAsString()), libraryObj.get("name").getAsString()).toURL();
-					newMetadata.libs.add(new FabricLibraryJar(
-						libraryObj.get("name").getAsString(),
-						libUrl,
-						RequestUtils.getSha1Hash(libUrl)
-					));
+					mavenPaths.add(libraryObj.get("name").getAsString());
+					mavenUrls.add(RequestUtils.resolveMavenPath(new URI(libraryObj.get("url").getAsString()), libraryObj.get("name").getAsString()).toURL());
 				}
 				for (JsonElement library : libraries.getAsJsonArray(side.name)) {
 					JsonObject libraryObj = library.getAsJsonObject();
@@ -134,13 +154,22 @@ public class FabricJarSource implements ResolvableJarSource<FabricJarSource.Fabr
 					if (side == Side.SERVER && libraryObj.get("name").getAsString().contains("com.google.guava:guava")) {
 						continue;
 					}
-					URL libUrl = RequestUtils.resolveMavenPath(new URI(libraryObj.get("url").getAsString()), libraryObj.get("name").getAsString()).toURL();
-					newMetadata.libs.add(new FabricLibraryJar(
-						libraryObj.get("name").getAsString(),
-						libUrl,
-						RequestUtils.getSha1Hash(libUrl)
-					));
+					mavenPaths.add(libraryObj.get("name").getAsString());
+					mavenUrls.add(RequestUtils.resolveMavenPath(new URI(libraryObj.get("url").getAsString()), libraryObj.get("name").getAsString()).toURL());
+				}
+
+				// Hashes and sizes are remembered across metadata invalidations, as most libraries don't change between loader versions
+				HashMemoStore hashMemoStore = HashMemoStore.load(cacheView.resolve("hashes.json"));
+				List<Integer> indices = new ArrayList<>();
+				for (int i = 0; i < mavenPaths.size(); i++) {
+					indices.add(i);
 				}
+				newMetadata.libs.addAll(RequestUtils.requestConcurrently(indices, i -> {
+					URL source = mavenUrls.get(i);
+					return new FabricLibraryJar(mavenPaths.get(i), source,
+						RequestUtils.getSha1Hash(source, hashMemoStore), RequestUtils.getContentLength(source, hashMemoStore));
+				}));
+				hashMemoStore.saveIfDirty();
 
 				return newMetadata;
 			} catch (URISyntaxException e) {
@@ -153,12 +182,27 @@ public class FabricJarSource implements ResolvableJarSource<FabricJarSource.Fabr
 		for (FabricLibraryJar libraryJar : meta.libs) {
 			jars.add(new ResolvableJar(libraryJar.source,
 				ctx.getEnvironment().jarStorage.getLibraryMaven(libraryJar.mavenPath),
-				SHA1HashingInputStream.verifier(libraryJar.hash, libraryJar.source.toString()), "Fabric library " + libraryJar.source));
+				SHA1HashVerifier.verifier(libraryJar.hash, libraryJar.source.toString()), libraryJar.size, "Fabric library " + libraryJar.source));
 		}
 
 		return new MetadataResolutionResult(jars, meta.mainClass);
 	}
 
+	@Override
+	public List<URL> getMetadataPrewarmUrls() throws MalformedURLException {
+		return Collections.singletonList(new URL("https://meta.fabricmc.net/v2/versions/loader"));
+	}
+
+	@Override
+	public List<URL> getDownloadPrewarmUrls() throws MalformedURLException {
+		return Collections.singletonList(FABRIC_MAVEN.toURL());
+	}
+
+	@Override
+	public Set<String> getAllowedDownloadHosts() {
+		return Collections.singleton(FABRIC_MAVEN.getHost());
+	}
+
 	@Override
 	public Class<FabricInvalidationKey> getInvalidationKeyType() {
 		return FabricInvalidationKey.class;
@@ -21,6 +21,11 @@ public class FolderJarSource implements ResolvableJarSource<FolderJarSource.Fold
 			.map(path -> new ResolvableJar(path, "File " + path)).collect(Collectors.toList()), null);
 	}
 
+	@Override
+	public boolean isLockable() {
+		return false;
+	}
+
 	@Override
 	public Class<FolderInvalidationKey> getInvalidationKeyType() {
 		return FolderInvalidationKey.class;
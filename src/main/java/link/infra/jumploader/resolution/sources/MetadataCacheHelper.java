@@ -6,14 +6,14 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 /**
  * Horrifically overengineered cache invalidation and storage system, storing files based on the hash
@@ -22,19 +22,40 @@ import java.util.Map;
 public class MetadataCacheHelper {
 	private final Path cacheFolderPath;
 	private final Path cacheIndexPath;
-	private final Map<String, InvalidationKey<?>> indexValues = new HashMap<>();
+	private final Path legacyCacheIndexPath;
+	private final Map<String, InvalidationKey<?>> indexValues = new ConcurrentHashMap<>();
+	// The keys loaded from the index, which aren't replaced by new keys, for finding stale metadata
+	private final Map<String, InvalidationKey<?>> storedIndexValues = new ConcurrentHashMap<>();
+	// Sources whose stale metadata was used and is old enough to be refreshed
+	private final Set<String> sourcesToRefresh = ConcurrentHashMap.newKeySet();
+	private volatile boolean dirty = false;
 
 	private final Logger LOGGER = LogManager.getLogger();
 
 	public interface InvalidationKey<T extends InvalidationKey<T>> {
 		boolean isValid(T key);
+
+		/**
+		 * Returns true if metadata cached with the given key can be used in place of up to date metadata, when the up to
+		 * date metadata can't be retrieved in time
+		 */
+		default boolean isUsableWhenStale(T key) {
+			return isValid(key);
+		}
+
+		/**
+		 * Returns true if the jars stored in the lockfile with the given key can be used for the current configuration
+		 */
+		default boolean isUsableFromLockfile(T key) {
+			return isValid(key);
+		}
 	}
 
 	public interface InvalidationUpdateSourcer<T, E extends Throwable> {
 		T get() throws IOException, E;
 	}
 
-	private static final Gson PRETTY_GSON = new GsonBuilder().setPrettyPrinting().create();
+	private static final Gson GSON = new Gson();
 
 	public interface MetadataCacheView {
 		boolean isValid(String name);
@@ -55,25 +76,46 @@ public class MetadataCacheHelper {
 			return new String(getAsBytes(name, () -> updater.get().getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
 		}
 
+		/**
+		 * Gets an object stored in the binary metadata format (see BinaryMetadataFormat). Fresh objects are returned
+		 * directly, rather than being read back from the stored file.
+		 */
 		default <T, E extends Throwable> T getObject(String name, Class<T> type, InvalidationUpdateSourcer<T, E> updater) throws IOException, E {
-			return PRETTY_GSON.fromJson(getAsString(name, () -> PRETTY_GSON.toJson(updater.get(), type)), type);
+			if (isValid(name)) {
+				JsonElement stored = BinaryMetadataFormat.read(resolve(name));
+				// Files stored by a different version of the format are updated
+				if (stored != null) {
+					return GSON.fromJson(stored, type);
+				}
+			}
+			T value = updater.get();
+			BinaryMetadataFormat.write(resolve(name), GSON.toJsonTree(value, type));
+			return value;
 		}
 	}
 
-	@SuppressWarnings("unchecked")
 	public <T extends InvalidationKey<T>> MetadataCacheView viewCache(String sourceId, T invalidationKey) {
-		T oldInvKey;
-		if (indexValues.containsKey(sourceId)) {
-			oldInvKey = (T) indexValues.get(sourceId);
-		} else {
-			oldInvKey = null;
-			indexValues.put(sourceId, invalidationKey);
-		}
+		return viewCache(sourceId, invalidationKey, () -> invalidationKey, false);
+	}
+
+	/**
+	 * Views the cache of a source as if it were out of date, so all metadata is retrieved again and stored. The key is
+	 * retrieved from the supplier when the update completes, as retrieving the metadata can change the key (e.g. by
+	 * pinning a version).
+	 */
+	public <T extends InvalidationKey<T>> MetadataCacheView viewCacheForRefresh(String sourceId, Supplier<T> invalidationKey) {
+		return viewCache(sourceId, invalidationKey.get(), invalidationKey, true);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends InvalidationKey<T>> MetadataCacheView viewCache(String sourceId, T invalidationKey, Supplier<T> updatedInvalidationKey, boolean forceUpdate) {
+		// Views may be created concurrently by sources resolving in parallel
+		T oldInvKey = (T) indexValues.putIfAbsent(sourceId, invalidationKey);
 		return new MetadataCacheView() {
 			@Override
 			public boolean isValid(String name) {
 				// Check the invalidation key
-				if (oldInvKey == null || !invalidationKey.isValid(oldInvKey)) {
+				if (forceUpdate || oldInvKey == null || !invalidationKey.isValid(oldInvKey)) {
 					return false;
 				}
 				// Check for existence of the file
@@ -89,44 +131,112 @@ public class MetadataCacheHelper {
 			public void completeUpdate() throws IOException {
 				// Note that it's still important to update the key even if the old one is valid
 				// - it could include a "date last updated" field
-				indexValues.put(sourceId, invalidationKey);
-				MetadataCacheHelper.this.save();
+				// The index is saved once all sources have been resolved, see saveIfDirty
+				indexValues.put(sourceId, updatedInvalidationKey.get());
+				dirty = true;
+			}
+		};
+	}
+
+	/**
+	 * Views the cached metadata of a source regardless of whether it is up to date, as long as the invalidation key
+	 * considers it usable when stale. Returns null if there is no usable metadata; the view doesn't update the cache, and
+	 * throws an IOException if metadata isn't cached. If out of date metadata older than maxAgeMillis is read, the source
+	 * is added to getSourcesToRefresh.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends InvalidationKey<T>> MetadataCacheView viewStaleCache(String sourceId, T invalidationKey, long maxAgeMillis) {
+		T storedInvKey = (T) storedIndexValues.get(sourceId);
+		if (storedInvKey == null || !invalidationKey.isUsableWhenStale(storedInvKey)) {
+			return null;
+		}
+		boolean upToDate = invalidationKey.isValid(storedInvKey);
+		return new MetadataCacheView() {
+			@Override
+			public boolean isValid(String name) {
+				return Files.exists(cacheFolderPath.resolve(name));
+			}
+
+			@Override
+			public Path resolve(String name) {
+				return cacheFolderPath.resolve(name);
+			}
+
+			@Override
+			public void completeUpdate() {
+				// The stale metadata isn't saved as up to date
+			}
+
+			private void checkAge(String name) throws IOException {
+				if (!isValid(name)) {
+					throw new IOException("No cached metadata found for " + name);
+				}
+				if (!upToDate && System.currentTimeMillis() - Files.getLastModifiedTime(resolve(name)).toMillis() >= maxAgeMillis) {
+					sourcesToRefresh.add(sourceId);
+				}
+			}
+
+			@Override
+			public <E extends Throwable> byte[] getAsBytes(String name, InvalidationUpdateSourcer<byte[], E> updater) throws IOException {
+				checkAge(name);
+				return Files.readAllBytes(resolve(name));
+			}
+
+			@Override
+			public <T, E extends Throwable> T getObject(String name, Class<T> type, InvalidationUpdateSourcer<T, E> updater) throws IOException {
+				checkAge(name);
+				JsonElement stored = BinaryMetadataFormat.read(resolve(name));
+				if (stored == null) {
+					throw new IOException("Cached metadata " + name + " was stored by an incompatible version");
+				}
+				return GSON.fromJson(stored, type);
 			}
 		};
 	}
 
+	/**
+	 * Returns the sources which used stale metadata that should be refreshed, see viewStaleCache
+	 */
+	public Set<String> getSourcesToRefresh() {
+		return sourcesToRefresh;
+	}
+
 	public MetadataCacheHelper(ParsedArguments args) throws IOException {
 		cacheFolderPath = args.gameDir.resolve(".jumploader").resolve("metacache");
 		Files.createDirectories(cacheFolderPath);
-		cacheIndexPath = cacheFolderPath.resolve("index.json");
+		cacheIndexPath = cacheFolderPath.resolve("index.bin");
+		legacyCacheIndexPath = cacheFolderPath.resolve("index.json");
 
-		JsonParser parser = new JsonParser();
-		Gson gson = new Gson();
-		try (InputStreamReader rdr = new InputStreamReader(Files.newInputStream(cacheIndexPath))) {
-			JsonElement el = parser.parse(rdr);
-			try {
+		try {
+			JsonElement el = BinaryMetadataFormat.read(Files.exists(cacheIndexPath) ? cacheIndexPath : legacyCacheIndexPath);
+			if (el != null) {
 				JsonObject obj = el.getAsJsonObject();
 				obj.entrySet().forEach(entry -> {
 					ResolvableJarSource<?> src = SourcesRegistry.getSource(entry.getKey());
 					if (src != null) {
-						InvalidationKey<?> storedSrcEntry = gson.fromJson(entry.getValue(), src.getInvalidationKeyType());
+						InvalidationKey<?> storedSrcEntry = GSON.fromJson(entry.getValue(), src.getInvalidationKeyType());
 						indexValues.put(entry.getKey(), storedSrcEntry);
+						storedIndexValues.put(entry.getKey(), storedSrcEntry);
 					} else {
 						LOGGER.warn("Couldn't find jar source " + entry.getKey());
 					}
 				});
-			} catch (IllegalStateException e) {
-				LOGGER.warn("Failed to load cache file", e);
 			}
 		} catch (NoSuchFileException ignored) {
 			// Ignore if there are no cached values
+		} catch (IOException | IllegalStateException e) {
+			LOGGER.warn("Failed to load cache file", e);
 		}
 	}
 
-	private void save() throws IOException {
-		Gson gson = new GsonBuilder().setPrettyPrinting().create();
-		try (OutputStreamWriter osw = new OutputStreamWriter(Files.newOutputStream(cacheIndexPath))) {
-			gson.toJson(indexValues, osw);
+	/**
+	 * Writes the index, if any keys have been updated. The index is replaced atomically, so it is never partially written.
+	 */
+	public synchronized void saveIfDirty() throws IOException {
+		if (dirty) {
+			dirty = false;
+			BinaryMetadataFormat.write(cacheIndexPath, GSON.toJsonTree(indexValues));
+			Files.deleteIfExists(legacyCacheIndexPath);
 		}
 	}
 }
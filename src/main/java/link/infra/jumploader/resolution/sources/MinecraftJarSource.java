@@ -1,22 +1,24 @@
 package link.infra.jumploader.resolution.sources;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
 import com.google.gson.reflect.TypeToken;
 import link.infra.jumploader.resolution.ResolvableJar;
-import link.infra.jumploader.resolution.download.verification.SHA1HashingInputStream;
+import link.infra.jumploader.resolution.download.verification.SHA1HashVerifier;
 import link.infra.jumploader.util.RequestUtils;
 import link.infra.jumploader.util.Side;
 
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 public class MinecraftJarSource implements ResolvableJarSource<MinecraftJarSource.MinecraftInvalidationKey> {
 	public static class MinecraftInvalidationKey implements MetadataCacheHelper.InvalidationKey<MinecraftInvalidationKey> {
@@ -55,12 +57,14 @@ public class MinecraftJarSource implements ResolvableJarSource<MinecraftJarSourc
 		public final String version;
 		public final URL source;
 		public final String hash;
+		public final long size;
 		public final Side side;
 
-		private MinecraftGameJar(String version, URL source, String hash, Side side) {
+		private MinecraftGameJar(String version, URL source, String hash, long size, Side side) {
 			this.version = version;
 			this.source = source;
 			this.hash = hash;
+			this.size = size;
 			this.side = side;
 		}
 	}
@@ -69,11 +73,32 @@ public class MinecraftJarSource implements ResolvableJarSource<MinecraftJarSourc
 		public final String mavenPath;
 		public final URL source;
 		public final String hash;
+		public final long size;
 
-		private MinecraftLibraryJar(String mavenPath, URL source, String hash) {
+		private MinecraftLibraryJar(String mavenPath, URL source, String hash, long size) {
 			this.mavenPath = mavenPath;
 			this.source = source;
 			this.hash = hash;
+			this.size = size;
+		}
+	}
+
+	// Download objects in the version JSON, which are parsed directly from the stream
+	private static class Download {
+		String url;
+		String sha1;
+		long size = -1;
+	}
+
+	private static class Library {
+		String name;
+		List<Rule> rules;
+		Map<String, String> natives;
+		LibraryDownloads downloads;
+
+		private static class LibraryDownloads {
+			Download artifact;
+			Map<String, Download> classifiers;
 		}
 	}
 
@@ -88,16 +113,43 @@ public class MinecraftJarSource implements ResolvableJarSource<MinecraftJarSourc
 		}
 	}
 
+	private static final String VERSION_MANIFEST_URL = "https://launchermeta.mojang.com/mc/game/version_manifest.json";
+
 	public static URL retrieveVersionMetaUrl(String minecraftVersion) throws IOException {
-		JsonObject manifestData = RequestUtils.getJson(new URL("https://launchermeta.mojang.com/mc/game/version_manifest.json")).getAsJsonObject();
-		JsonArray versions = manifestData.getAsJsonArray("versions");
-		for (JsonElement version : versions) {
-			JsonObject versionObj = version.getAsJsonObject();
-			if (minecraftVersion.equals(versionObj.get("id").getAsString())) {
-				return new URL(versionObj.get("url").getAsString());
+		// The manifest lists every version, so it is read one version at a time, stopping once the version is found
+		return RequestUtils.getJsonStreaming(new URL(VERSION_MANIFEST_URL), reader -> {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (!reader.nextName().equals("versions")) {
+					reader.skipValue();
+					continue;
+				}
+				reader.beginArray();
+				while (reader.hasNext()) {
+					String id = null;
+					String url = null;
+					reader.beginObject();
+					while (reader.hasNext()) {
+						switch (reader.nextName()) {
+							case "id":
+								id = reader.nextString();
+								break;
+							case "url":
+								url = reader.nextString();
+								break;
+							default:
+								reader.skipValue();
+						}
+					}
+					reader.endObject();
+					if (minecraftVersion.equals(id) && url != null) {
+						return new URL(url);
+					}
+				}
+				reader.endArray();
 			}
-		}
-		throw new IOException("Invalid Minecraft version, not found in manifest");
+			throw new IOException("Invalid Minecraft version, not found in manifest");
+		});
 	}
 
 	private static class Rule {
@@ -109,87 +161,116 @@ public class MinecraftJarSource implements ResolvableJarSource<MinecraftJarSourc
 		}
 	}
 
+	// Adapters are created once, rather than for every library
+	private static final Gson GSON = new Gson();
+	private static final TypeAdapter<Library> LIBRARY_ADAPTER = GSON.getAdapter(Library.class);
+	private static final TypeAdapter<Map<String, Download>> DOWNLOADS_ADAPTER = GSON.getAdapter(new TypeToken<Map<String, Download>>() {});
+
+	private static boolean isAllowed(List<Rule> rules, String currentOS) {
+		if (rules == null) {
+			return true;
+		}
+		// The last matching rule applies
+		for (int i = rules.size() - 1; i >= 0; i--) {
+			Rule rule = rules.get(i);
+			if (rule.os != null) {
+				if (!currentOS.equals(rule.os.name)) {
+					continue;
+				}
+			}
+			if (rule.action.equals("disallow")) {
+				return false;
+			}
+			if (rule.action.equals("allow")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the library jar to download for a library in the version JSON, or null if it isn't used on this OS
+	 */
+	private static MinecraftLibraryJar getLibraryJar(Library library, String currentOS) throws MalformedURLException {
+		if (!isAllowed(library.rules, currentOS)) {
+			return null;
+		}
+		if (library.natives != null && library.natives.size() > 0) {
+			// TODO: should natives be ignored anyway? - we don't/can't handle them properly (see wiki)
+			if (library.natives.containsKey(currentOS)) {
+				String nativesClassifier = library.natives.get(currentOS);
+				Download nativesDownload = library.downloads.classifiers != null ? library.downloads.classifiers.get(nativesClassifier) : null;
+				if (nativesDownload == null) {
+					throw new RuntimeException("No natives available for " + library.name + " classifier " + nativesClassifier);
+				}
+				return new MinecraftLibraryJar(library.name + ":" + nativesClassifier,
+					new URL(nativesDownload.url), nativesDownload.sha1, nativesDownload.size);
+			}
+			return null;
+		}
+		Download artifact = library.downloads.artifact;
+		return new MinecraftLibraryJar(library.name, new URL(artifact.url), artifact.sha1, artifact.size);
+	}
+
 	@Override
 	public MetadataResolutionResult resolve(MetadataCacheHelper.MetadataCacheView cacheView, ResolutionContext ctx) throws IOException {
 		String gameVersion = ctx.getLoadingVersion();
 		Side side = ctx.getLoadingSide();
 		MinecraftMetadata meta = cacheView.getObject("minecraft.json", MinecraftMetadata.class, () -> {
 			URL versionMetaUrl = retrieveVersionMetaUrl(gameVersion);
-			JsonObject manifestData = RequestUtils.getJson(versionMetaUrl).getAsJsonObject();
-			JsonObject downloads = manifestData.getAsJsonObject("downloads");
-
-			JsonObject download = downloads.getAsJsonObject(side.name);
-			MinecraftGameJar jar = new MinecraftGameJar(gameVersion,
-				new URL(download.get("url").getAsString()), download.get("sha1").getAsString(), side);
-
-			Gson gson = new Gson();
 			String currentOS = ctx.getEnvironment().os;
-
-			MinecraftMetadata newMetadata = new MinecraftMetadata(jar, manifestData.get("mainClass").getAsString());
-			for (JsonElement lib : manifestData.getAsJsonArray("libraries")) {
-				JsonObject libObj = lib.getAsJsonObject();
-
-				JsonElement rulesEl = libObj.get("rules");
-				if (rulesEl != null) {
-					Type rulesListType = new TypeToken<ArrayList<Rule>>() {}.getType();
-					List<Rule> rules = gson.fromJson(rulesEl, rulesListType);
-					Collections.reverse(rules);
-					boolean isAllowed = false;
-					for (Rule rule : rules) {
-						if (rule.os != null) {
-							if (!currentOS.equals(rule.os.name)) {
-								continue;
-							}
-						}
-						if (rule.action.equals("disallow")) {
+			// The version JSON is parsed from the stream, one library at a time, as the fields may be in any order
+			return RequestUtils.getJsonStreaming(versionMetaUrl, reader -> {
+				Download download = null;
+				String mainClass = null;
+				List<MinecraftLibraryJar> libs = new ArrayList<>();
+				reader.beginObject();
+				while (reader.hasNext()) {
+					switch (reader.nextName()) {
+						case "downloads":
+							download = DOWNLOADS_ADAPTER.read(reader).get(side.name);
 							break;
-						}
-						if (rule.action.equals("allow")) {
-							isAllowed = true;
+						case "mainClass":
+							mainClass = reader.nextString();
 							break;
-						}
-					}
-					if (!isAllowed) {
-						continue;
+						case "libraries":
+							reader.beginArray();
+							while (reader.hasNext()) {
+								MinecraftLibraryJar libraryJar = getLibraryJar(LIBRARY_ADAPTER.read(reader), currentOS);
+								if (libraryJar != null) {
+									libs.add(libraryJar);
+								}
+							}
+							reader.endArray();
+							break;
+						default:
+							reader.skipValue();
 					}
 				}
-
-				JsonObject downloadsObj = libObj.getAsJsonObject("downloads");
-				JsonObject nativesObj = libObj.getAsJsonObject("natives");
-				if (nativesObj != null && nativesObj.size() > 0) {
-					// TODO: should natives be ignored anyway? - we don't/can't handle them properly (see wiki)
-					if (nativesObj.has(currentOS)) {
-						String nativesClassifier = nativesObj.get(currentOS).getAsString();
-						JsonObject nativesDownloadObj = downloadsObj.getAsJsonObject("classifiers").getAsJsonObject(nativesClassifier);
-						if (nativesDownloadObj == null) {
-							throw new RuntimeException("No natives available in " + downloadsObj + " classifier " + nativesClassifier);
-						}
-						newMetadata.libs.add(new MinecraftLibraryJar(libObj.get("name").getAsString() + ":" + nativesClassifier,
-							new URL(nativesDownloadObj.get("url").getAsString()), nativesDownloadObj.get("sha1").getAsString()));
-					}
-					continue;
+				reader.endObject();
+				if (download == null || mainClass == null) {
+					throw new IOException("Invalid version JSON for Minecraft " + gameVersion);
 				}
 
-				JsonObject artifactObj = downloadsObj.getAsJsonObject("artifact");
-				newMetadata.libs.add(new MinecraftLibraryJar(libObj.get("name").getAsString(),
-					new URL(artifactObj.get("url").getAsString()), artifactObj.get("sha1").getAsString()));
-			}
-
-			return newMetadata;
+				MinecraftGameJar jar = new MinecraftGameJar(gameVersion, new URL(download.url), download.sha1, download.size, side);
+				MinecraftMetadata newMetadata = new MinecraftMetadata(jar, mainClass);
+				newMetadata.libs.addAll(libs);
+				return newMetadata;
+			});
 		});
 		cacheView.completeUpdate();
 
 		List<ResolvableJar> jars = new ArrayList<>();
 		jars.add(new ResolvableJar(meta.gameJar.source,
 			ctx.getEnvironment().jarStorage.getGameJar(meta.gameJar.version, meta.gameJar.side),
-			SHA1HashingInputStream.verifier(meta.gameJar.hash, meta.gameJar.source.toString()),
+			SHA1HashVerifier.verifier(meta.gameJar.hash, meta.gameJar.source.toString()), meta.gameJar.size,
 			"Minecraft " + side + " " + gameVersion));
 		// The server JAR bundles all it's dependencies
 		if (side == Side.CLIENT) {
 			for (MinecraftLibraryJar libraryJar : meta.libs) {
 				jars.add(new ResolvableJar(libraryJar.source,
 					ctx.getEnvironment().jarStorage.getLibraryMaven(libraryJar.mavenPath),
-					SHA1HashingInputStream.verifier(libraryJar.hash, libraryJar.source.toString()), "Minecraft library " + libraryJar.mavenPath));
+					SHA1HashVerifier.verifier(libraryJar.hash, libraryJar.source.toString()), libraryJar.size, "Minecraft library " + libraryJar.mavenPath));
 			}
 		}
 
@@ -200,6 +281,21 @@ public class MinecraftJarSource implements ResolvableJarSource<MinecraftJarSourc
 		}
 	}
 
+	@Override
+	public List<URL> getMetadataPrewarmUrls() throws MalformedURLException {
+		return Collections.singletonList(new URL(VERSION_MANIFEST_URL));
+	}
+
+	@Override
+	public List<URL> getDownloadPrewarmUrls() throws MalformedURLException {
+		return Arrays.asList(new URL("https://libraries.minecraft.net/"), new URL("https://launcher.mojang.com/"));
+	}
+
+	@Override
+	public Set<String> getAllowedDownloadHosts() {
+		return new HashSet<>(Arrays.asList("libraries.minecraft.net", "launcher.mojang.com", "piston-data.mojang.com"));
+	}
+
 	@Override
 	public Class<MinecraftInvalidationKey> getInvalidationKeyType() {
 		return MinecraftInvalidationKey.class;
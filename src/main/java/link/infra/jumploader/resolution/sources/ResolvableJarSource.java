@@ -1,9 +1,45 @@
 package link.infra.jumploader.resolution.sources;
 
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 
 public interface ResolvableJarSource<T extends MetadataCacheHelper.InvalidationKey<T>> {
 	MetadataResolutionResult resolve(MetadataCacheHelper.MetadataCacheView cache, ResolutionContext ctx) throws IOException;
 	Class<T> getInvalidationKeyType();
 	T getInvalidationKey(ResolutionContext ctx);
+
+	/**
+	 * Gets URLs on the hosts this source requests metadata from, which are requested early so connections to them are
+	 * ready
+	 */
+	default List<URL> getMetadataPrewarmUrls() throws MalformedURLException {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Gets URLs on the hosts this source downloads jars from, which are requested early so connections to them are ready
+	 */
+	default List<URL> getDownloadPrewarmUrls() throws MalformedURLException {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Returns true if the result of this source can be stored in the lockfile - sources that only find local files should
+	 * be resolved on every launch
+	 */
+	default boolean isLockable() {
+		return true;
+	}
+
+	/**
+	 * Gets the hosts this source downloads jars from - jars in the lockfile are only downloaded over HTTPS from these
+	 * hosts, so a modified lockfile can't make the source download from anywhere else
+	 */
+	default Set<String> getAllowedDownloadHosts() {
+		return Collections.emptySet();
+	}
 }
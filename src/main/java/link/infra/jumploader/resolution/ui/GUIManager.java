@@ -2,6 +2,7 @@ package link.infra.jumploader.resolution.ui;
 
 
 import link.infra.jumploader.launch.arguments.ParsedArguments;
+import link.infra.jumploader.resolution.download.DownloadListener;
 import link.infra.jumploader.resolution.download.DownloadWorkerManager;
 
 import java.util.Arrays;
@@ -12,12 +13,26 @@ import java.util.Arrays;
  */
 public class GUIManager {
 	private final Window window;
+	// Updated by download events, so rendering a frame doesn't need to query the workers
+	private volatile float progress;
 
 	public GUIManager(DownloadWorkerManager<?> downloadWorkerManager, ParsedArguments args) {
+		progress = downloadWorkerManager.getWorkerProgress();
+		downloadWorkerManager.addListener(new DownloadListener<Object>() {
+			@Override
+			public void downloadProgress(DownloadWorkerManager.TaskStatus status) {
+				progress = downloadWorkerManager.getWorkerProgress();
+			}
+
+			@Override
+			public void downloadCompleted(DownloadWorkerManager.TaskStatus status, Object result) {
+				progress = downloadWorkerManager.getWorkerProgress();
+			}
+		});
 		window = new Window(new AdaptiveWidthContainer(
 			new DirectionLayout(Direction.VERTICAL).addChildren(
 				new Image("assets/jumploader/splashlogo.png"),
-				new AdaptiveWidthContainer(new ProgressBar(downloadWorkerManager::getWorkerProgress), 0.5f, 1500f)
+				new AdaptiveWidthContainer(new ProgressBar(() -> progress), 0.5f, 1500f)
 			)
 		), args.windowWidth, args.windowHeight);
 		window.setIcons(Arrays.asList(
@@ -0,0 +1,99 @@
+package link.infra.jumploader.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the total download bandwidth using token buckets, so downloads don't saturate a connection shared with other
+ * servers. Background transfers are limited by both the global limit and a separate (usually lower) background limit.
+ * Each bucket holds up to BURST_SECONDS of bandwidth, so short bursts above the limit are allowed.
+ */
+public class BandwidthLimiter {
+	private BandwidthLimiter() {}
+
+	private static final long BURST_SECONDS = 2;
+	// Buckets always hold at least this much, so a buffer can be read in one go even with very low limits
+	private static final long MIN_BURST_BYTES = 64 * 1024;
+
+	// Null if there is no limit
+	private static volatile TokenBucket globalBucket = null;
+	private static volatile TokenBucket backgroundBucket = null;
+
+	public enum Priority {
+		FOREGROUND,
+		BACKGROUND
+	}
+
+	private static class TokenBucket {
+		private final double bytesPerNano;
+		private final double capacity;
+		private final ReentrantLock lock = new ReentrantLock();
+		private double tokens;
+		private long lastRefill = System.nanoTime();
+
+		private TokenBucket(long bytesPerSecond) {
+			bytesPerNano = bytesPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+			capacity = Math.max(bytesPerSecond * BURST_SECONDS, MIN_BURST_BYTES);
+			tokens = capacity;
+		}
+
+		/**
+		 * Takes the given number of bytes from the bucket, and returns the time in nanoseconds until they would have
+		 * been available. The bucket can go into debt, so concurrent callers wait in turn.
+		 */
+		private long take(long bytes) {
+			lock.lock();
+			try {
+				long now = System.nanoTime();
+				tokens = Math.min(capacity, tokens + (now - lastRefill) * bytesPerNano);
+				lastRefill = now;
+				tokens -= bytes;
+				return tokens >= 0 ? 0 : (long) (-tokens / bytesPerNano);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Sets the global and background limits, in bytes per second, where 0 is no limit
+	 */
+	public static void setLimits(long globalBytesPerSecond, long backgroundBytesPerSecond) {
+		globalBucket = globalBytesPerSecond > 0 ? new TokenBucket(globalBytesPerSecond) : null;
+		backgroundBucket = backgroundBytesPerSecond > 0 ? new TokenBucket(backgroundBytesPerSecond) : null;
+	}
+
+	// While waiting for bandwidth, whileWaiting is called at least this often
+	private static final long WAIT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Accounts for the given number of bytes that have been read, waiting if they exceed the limit for the priority. If
+	 * whileWaiting isn't null, it is called periodically while waiting (e.g. so throttled downloads aren't detected as
+	 * stalled).
+	 */
+	public static void acquire(long bytes, Priority priority, Runnable whileWaiting) throws InterruptedIOException {
+		long waitNanos = 0;
+		TokenBucket global = globalBucket;
+		if (global != null) {
+			waitNanos = global.take(bytes);
+		}
+		TokenBucket background = backgroundBucket;
+		if (priority == Priority.BACKGROUND && background != null) {
+			waitNanos = Math.max(waitNanos, background.take(bytes));
+		}
+		try {
+			while (waitNanos > 0) {
+				if (whileWaiting != null) {
+					whileWaiting.run();
+				}
+				long sleepNanos = Math.min(waitNanos, WAIT_INTERVAL_NANOS);
+				TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				waitNanos -= sleepNanos;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package link.infra.jumploader.util;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Persistent store of the SHA-1 hashes and sizes of maven artifacts, keyed by URL. Artifacts at a fixed maven coordinate
+ * never change, so their hashes and sizes can be reused even when the metadata that referenced them has been invalidated.
+ */
+public class HashMemoStore {
+	private static final Logger LOGGER = LogManager.getLogger();
+	private static final Pattern SHA1_PATTERN = Pattern.compile("[0-9a-fA-F]{40}");
+
+	private final Path storePath;
+	private final Map<String, String> hashes = new ConcurrentHashMap<>();
+	private final Map<String, Long> sizes = new ConcurrentHashMap<>();
+	private volatile boolean dirty = false;
+
+	private static class StoredData {
+		private Map<String, String> hashes;
+		private Map<String, Long> sizes;
+	}
+
+	private HashMemoStore(Path storePath) {
+		this.storePath = storePath;
+	}
+
+	public static HashMemoStore load(Path storePath) throws IOException {
+		HashMemoStore store = new HashMemoStore(storePath);
+		try (InputStreamReader isr = new InputStreamReader(Files.newInputStream(storePath), StandardCharsets.UTF_8)) {
+			StoredData loaded = new Gson().fromJson(isr, StoredData.class);
+			if (loaded != null) {
+				if (loaded.hashes != null) {
+					store.hashes.putAll(loaded.hashes);
+				}
+				if (loaded.sizes != null) {
+					store.sizes.putAll(loaded.sizes);
+				}
+			}
+		} catch (NoSuchFileException ignored) {
+			// Ignore if there are no stored hashes
+		} catch (JsonParseException e) {
+			LOGGER.warn("Failed to load hash store, it will be recreated", e);
+		}
+		return store;
+	}
+
+	public String get(URL url) {
+		return hashes.get(url.toString());
+	}
+
+	public void put(URL url, String hash) {
+		// Snapshot artifacts can change at the same URL, and anything that isn't a plain SHA-1 hash shouldn't be trusted
+		if (url.getPath().contains("-SNAPSHOT") || !SHA1_PATTERN.matcher(hash).matches()) {
+			return;
+		}
+		if (!hash.equals(hashes.put(url.toString(), hash))) {
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Gets the stored size of the artifact at the given URL, or -1 if it isn't known
+	 */
+	public long getSize(URL url) {
+		return sizes.getOrDefault(url.toString(), -1L);
+	}
+
+	public void putSize(URL url, long size) {
+		if (url.getPath().contains("-SNAPSHOT") || size <= 0) {
+			return;
+		}
+		Long oldSize = sizes.put(url.toString(), size);
+		if (oldSize == null || oldSize != size) {
+			dirty = true;
+		}
+	}
+
+	public void saveIfDirty() throws IOException {
+		if (dirty) {
+			Gson gson = new GsonBuilder().setPrettyPrinting().create();
+			StoredData data = new StoredData();
+			data.hashes = new TreeMap<>(hashes);
+			data.sizes = new TreeMap<>(sizes);
+			try (OutputStreamWriter osw = new OutputStreamWriter(Files.newOutputStream(storePath), StandardCharsets.UTF_8)) {
+				gson.toJson(data, osw);
+			}
+			dirty = false;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package link.infra.jumploader.util;
+
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of concurrent connections to each host. Metadata requests are small and block resolution, so
+ * they are given connections before any waiting bulk downloads.
+ * Uses ReentrantLock rather than synchronized, so waiting virtual threads don't pin their carrier threads.
+ */
+public class HostConnectionLimiter {
+	private HostConnectionLimiter() {}
+
+	private static final int DEFAULT_MAX_CONNECTIONS = 6;
+	// While waiting for a connection, whileWaiting is called at least this often
+	private static final long WAIT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static volatile Map<String, Integer> hostLimits = new HashMap<>();
+	private static final Map<String, HostState> hostStates = new ConcurrentHashMap<>();
+
+	public enum Priority {
+		METADATA,
+		BULK
+	}
+
+	private static class HostState {
+		private final int maxConnections;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition connectionAvailable = lock.newCondition();
+		private int activeConnections = 0;
+		private int waitingMetadataRequests = 0;
+
+		private HostState(int maxConnections) {
+			this.maxConnections = maxConnections;
+		}
+	}
+
+	/**
+	 * A connection slot for a host, which must be closed when the connection is no longer used
+	 */
+	public static class Permit implements AutoCloseable {
+		private final HostState state;
+		private boolean released = false;
+
+		private Permit(HostState state) {
+			this.state = state;
+		}
+
+		@Override
+		public void close() {
+			state.lock.lock();
+			try {
+				if (!released) {
+					released = true;
+					state.activeConnections--;
+					state.connectionAvailable.signalAll();
+				}
+			} finally {
+				state.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Sets the maximum number of connections for each host - hosts that aren't in the map are limited to 6 connections.
+	 * Must be called before any connections are made.
+	 */
+	public static void setHostLimits(Map<String, Integer> limits) {
+		Map<String, Integer> newLimits = new HashMap<>();
+		if (limits != null) {
+			limits.forEach((host, limit) -> newLimits.put(host.toLowerCase(), limit));
+		}
+		hostLimits = newLimits;
+		hostStates.clear();
+	}
+
+	public static Permit acquire(URL url, Priority priority) throws InterruptedIOException {
+		return acquire(url, priority, null);
+	}
+
+	/**
+	 * Waits for a connection slot for the host of the given URL. If whileWaiting isn't null, it is called periodically
+	 * while waiting (e.g. so downloads waiting for a connection aren't detected as stalled).
+	 */
+	public static Permit acquire(URL url, Priority priority, Runnable whileWaiting) throws InterruptedIOException {
+		HostState state = hostStates.computeIfAbsent(url.getHost().toLowerCase(), host ->
+			new HostState(Math.max(1, hostLimits.getOrDefault(host, DEFAULT_MAX_CONNECTIONS))));
+		state.lock.lock();
+		try {
+			if (priority == Priority.METADATA) {
+				state.waitingMetadataRequests++;
+			}
+			try {
+				while (state.activeConnections >= state.maxConnections ||
+					(priority == Priority.BULK && state.waitingMetadataRequests > 0)) {
+					if (whileWaiting != null) {
+						whileWaiting.run();
+					}
+					state.connectionAvailable.awaitNanos(WAIT_INTERVAL_NANOS);
+				}
+			} catch (InterruptedException e) {
+				InterruptedIOException ex = new InterruptedIOException("Interrupted while waiting for a connection to " + url.getHost());
+				ex.initCause(e);
+				throw ex;
+			} finally {
+				if (priority == Priority.METADATA) {
+					state.waitingMetadataRequests--;
+					// Bulk requests may be waiting for this request to get a connection
+					state.connectionAvailable.signalAll();
+				}
+			}
+			state.activeConnections++;
+		} finally {
+			state.lock.unlock();
+		}
+		return new Permit(state);
+	}
+}
@@ -0,0 +1,284 @@
+package link.infra.jumploader.util;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+
+/**
+ * A local cache of HTTP responses, which stores the ETag and Last-Modified validators of each response so that it can
+ * be revalidated with a conditional request. If the server responds with 304 Not Modified, the cached body is used.
+ * Responses are always revalidated (as with Cache-Control: no-cache), and responses with Cache-Control: no-store aren't
+ * stored. Bodies are stored decompressed.
+ * Each entry is a single file, starting with a line of JSON with the URL and validators followed by the body, so the
+ * validators and body are always replaced together.
+ */
+public class HttpCache {
+	private static final Logger LOGGER = LogManager.getLogger();
+	private static final Gson GSON = new Gson();
+	// Longer header lines are treated as corrupt
+	private static final int MAX_HEADER_LENGTH = 16 * 1024;
+
+	private final Path directory;
+
+	public HttpCache(Path directory) {
+		this.directory = directory;
+	}
+
+	private static class StoredEntry {
+		String url;
+		String etag;
+		String lastModified;
+	}
+
+	/**
+	 * A cached response, with the validators it was stored with
+	 */
+	public static class Entry {
+		public final Path path;
+		public final String etag;
+		public final String lastModified;
+
+		private Entry(Path path, String etag, String lastModified) {
+			this.path = path;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * Adds the headers to make the request conditional on the cached response being out of date
+		 */
+		public TransportRequest addConditionalHeaders(TransportRequest request) {
+			if (etag != null) {
+				request.header("If-None-Match", etag);
+			}
+			if (lastModified != null) {
+				request.header("If-Modified-Since", lastModified);
+			}
+			return request;
+		}
+
+		/**
+		 * Opens the cached body. Fails if the entry has been replaced since it was read, as the body may not match the
+		 * validators that were revalidated.
+		 */
+		public InputStream openBody() throws IOException {
+			InputStream in = new BufferedInputStream(Files.newInputStream(path));
+			try {
+				StoredEntry stored = readHeader(in, path);
+				if (!Objects.equals(etag, stored.etag) || !Objects.equals(lastModified, stored.lastModified)) {
+					throw new IOException("Cached response " + path + " was replaced while it was being revalidated");
+				}
+				return in;
+			} catch (IOException | RuntimeException e) {
+				in.close();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * A response that is being stored, which replaces the existing entry only when it is committed
+	 */
+	public class PendingEntry implements Closeable {
+		private final Path path;
+		private final Path tmpPath;
+		private final OutputStream out;
+		private boolean fullyRead = false;
+		private boolean closed = false;
+
+		private PendingEntry(Path path, Path tmpPath, OutputStream out) {
+			this.path = path;
+			this.tmpPath = tmpPath;
+			this.out = out;
+		}
+
+		/**
+		 * Wraps the (decompressed) body of the response, so everything read from it is also written to the entry
+		 */
+		public InputStream tee(InputStream body) {
+			return new FilterInputStream(body) {
+				@Override
+				public int read() throws IOException {
+					int b = in.read();
+					if (b == -1) {
+						fullyRead = true;
+					} else {
+						out.write(b);
+					}
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int read = in.read(b, off, len);
+					if (read == -1) {
+						fullyRead = true;
+					} else {
+						out.write(b, off, read);
+					}
+					return read;
+				}
+
+				@Override
+				public long skip(long n) throws IOException {
+					// Skipped bytes must still be stored
+					byte[] buf = new byte[(int) Math.min(n, 8192)];
+					int read = read(buf, 0, buf.length);
+					return Math.max(read, 0);
+				}
+			};
+		}
+
+		/**
+		 * Moves the entry into place, replacing the existing entry, if the whole body has been read through tee - otherwise
+		 * the entry is discarded and the existing entry is kept
+		 */
+		public void commit() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			out.close();
+			if (fullyRead) {
+				moveAtomically(tmpPath, path);
+			} else {
+				Files.deleteIfExists(tmpPath);
+			}
+		}
+
+		/**
+		 * Discards the entry, unless it has been committed
+		 */
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				out.close();
+			} finally {
+				Files.deleteIfExists(tmpPath);
+			}
+		}
+	}
+
+	private static String getKey(URL url) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			return Hex.encodeHexString(digest.digest(url.toString().getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Reads the header line of an entry, leaving the stream at the start of the body
+	 */
+	private static StoredEntry readHeader(InputStream in, Path path) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b == -1 || header.size() >= MAX_HEADER_LENGTH) {
+				throw new IOException("Cached response " + path + " is truncated or corrupt");
+			}
+			header.write(b);
+		}
+		StoredEntry stored;
+		try {
+			stored = GSON.fromJson(new String(header.toByteArray(), StandardCharsets.UTF_8), StoredEntry.class);
+		} catch (JsonParseException e) {
+			throw new IOException("Cached response " + path + " is corrupt", e);
+		}
+		if (stored == null) {
+			throw new IOException("Cached response " + path + " is corrupt");
+		}
+		return stored;
+	}
+
+	/**
+	 * Gets the cached response for a URL, or null if there isn't one that can be revalidated
+	 */
+	public Entry get(URL url) {
+		Path path = directory.resolve(getKey(url) + ".cache");
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+			StoredEntry stored = readHeader(in, path);
+			if (!url.toString().equals(stored.url) || (stored.etag == null && stored.lastModified == null)) {
+				return null;
+			}
+			return new Entry(path, stored.etag, stored.lastModified);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			LOGGER.warn("Failed to read cached response for " + url, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if the response can be stored - it must have a validator, so it can be revalidated later
+	 */
+	public static boolean isCacheable(TransportResponse res) throws IOException {
+		String cacheControl = res.getHeader("Cache-Control");
+		if (cacheControl != null && cacheControl.toLowerCase().contains("no-store")) {
+			return false;
+		}
+		return res.getStatusCode() == 200 && (res.getHeader("ETag") != null || res.getHeader("Last-Modified") != null);
+	}
+
+	/**
+	 * Starts storing a response: the validators are written to a temporary file, followed by the body as it is read
+	 * through PendingEntry.tee. The entry replaces any existing entry once it is committed, so a partially written entry
+	 * is never read.
+	 */
+	public PendingEntry put(URL url, TransportResponse res) throws IOException {
+		Files.createDirectories(directory);
+		String key = getKey(url);
+		Path tmpPath = directory.resolve(key + ".cache.tmp");
+
+		StoredEntry stored = new StoredEntry();
+		stored.url = url.toString();
+		stored.etag = res.getHeader("ETag");
+		stored.lastModified = res.getHeader("Last-Modified");
+		OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmpPath));
+		try {
+			// Gson escapes newlines in strings, so the header is always one line
+			out.write(GSON.toJson(stored).getBytes(StandardCharsets.UTF_8));
+			out.write('\n');
+		} catch (IOException e) {
+			out.close();
+			Files.deleteIfExists(tmpPath);
+			throw e;
+		}
+		return new PendingEntry(directory.resolve(key + ".cache"), tmpPath, out);
+	}
+
+	private static void moveAtomically(Path source, Path dest) throws IOException {
+		try {
+			Files.move(source, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, dest, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
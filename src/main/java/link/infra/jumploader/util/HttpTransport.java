@@ -0,0 +1,15 @@
+package link.infra.jumploader.util;
+
+import java.io.IOException;
+
+/**
+ * Sends HTTP requests. The default transport uses java.net.http.HttpClient when running on Java 11 or later, so
+ * requests to the same host share a multiplexed HTTP/2 connection, and URLConnection otherwise.
+ */
+public interface HttpTransport {
+	/**
+	 * Sends the request, returning the response once the status and headers have been received. The response must be
+	 * closed once it is no longer used.
+	 */
+	TransportResponse send(TransportRequest request) throws IOException;
+}
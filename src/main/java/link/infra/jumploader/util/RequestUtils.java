@@ -2,53 +2,151 @@ package link.infra.jumploader.util;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
-import link.infra.jumploader.Jumploader;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import java.io.*;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
 
 public class RequestUtils {
 	private RequestUtils() {}
 
+	private static final Logger LOGGER = LogManager.getLogger();
+	private static final HttpTransport TRANSPORT = createTransport();
+	private static volatile HttpCache httpCache = null;
+
+	/**
+	 * Uses HttpClientTransport if it is available - it is only included in the Java 11 version of the multi-release jar
+	 */
+	private static HttpTransport createTransport() {
+		try {
+			Class<?> transportClass = Class.forName("link.infra.jumploader.util.HttpClientTransport");
+			return (HttpTransport) transportClass.getConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			LOGGER.debug("HttpClient transport not available, using URLConnection");
+			return new URLConnectionTransport();
+		}
+	}
+
+	public static HttpTransport getTransport() {
+		return TRANSPORT;
+	}
+
+	/**
+	 * Sends a HEAD request to each of the given URLs in the background, so the DNS lookup and TLS handshake for each
+	 * host are done early, and the connection is kept in the transport's pool for the first real request.
+	 * Must be called after the host limits and timeouts are set.
+	 */
+	public static void prewarmConnections(List<URL> urls) {
+		for (URL url : urls) {
+			Thread thread = new Thread(() -> {
+				try (HostConnectionLimiter.Permit ignored = HostConnectionLimiter.acquire(url, HostConnectionLimiter.Priority.BULK);
+					 TransportResponse res = TRANSPORT.send(TransportRequest.head(url))) {
+					LOGGER.debug("Prewarmed connection to " + url.getHost() + " (" + res.getStatusCode() + ")");
+				} catch (IOException e) {
+					LOGGER.debug("Failed to prewarm connection to " + url.getHost(), e);
+				}
+			}, "Jumploader connection prewarming");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
 	public static JsonElement getJson(URL requestUrl) throws IOException {
-		URLConnection conn = requestUrl.openConnection();
-		conn.setRequestProperty("User-Agent", Jumploader.USER_AGENT);
-		conn.setRequestProperty("Accept", "application/json");
+		return getJsonStreaming(requestUrl, reader -> new JsonParser().parse(reader));
+	}
 
-		try (InputStream res = conn.getInputStream(); InputStreamReader isr = new InputStreamReader(res)) {
-			JsonParser parser = new JsonParser();
-			return parser.parse(isr);
+	public interface JsonStreamParser<R> {
+		R parse(JsonReader reader) throws IOException;
+	}
+
+	/**
+	 * Requests JSON (with gzip compression, if the server supports it), and parses it from the stream with the given
+	 * parser - the parser doesn't need to read the whole response. If the HTTP cache is enabled, the response is
+	 * revalidated with a conditional request, and read from the cache if it hasn't been modified.
+	 */
+	public static <R> R getJsonStreaming(URL requestUrl, JsonStreamParser<R> parser) throws IOException {
+		HttpCache cache = httpCache;
+		HttpCache.Entry cached = cache != null ? cache.get(requestUrl) : null;
+		TransportRequest request = TransportRequest.get(requestUrl)
+			.header("Accept", "application/json")
+			.header("Accept-Encoding", "gzip");
+		if (cached != null) {
+			cached.addConditionalHeaders(request);
+		}
+		try (HostConnectionLimiter.Permit ignored = HostConnectionLimiter.acquire(requestUrl, HostConnectionLimiter.Priority.METADATA);
+			 TransportResponse res = TRANSPORT.send(request)) {
+			if (cached != null && res.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				LOGGER.debug("Using cached response for " + requestUrl);
+				return parseJson(cached.openBody(), parser);
+			}
+			InputStream body = res.getBody();
+			if ("gzip".equalsIgnoreCase(res.getHeader("Content-Encoding"))) {
+				body = new GZIPInputStream(body);
+			}
+			if (cache != null && HttpCache.isCacheable(res)) {
+				// The body is stored as it is parsed, and only kept if the whole body was read - a parser that stops early
+				// doesn't wait for the rest of the response, and the existing entry is kept
+				try (HttpCache.PendingEntry entry = cache.put(requestUrl, res);
+					 JsonReader reader = new JsonReader(new InputStreamReader(entry.tee(body), StandardCharsets.UTF_8))) {
+					R result = parser.parse(reader);
+					// If the parser read the whole document, check that nothing follows it, which reads to the end of the body
+					if ("$".equals(reader.getPath()) && reader.peek() == JsonToken.END_DOCUMENT) {
+						entry.commit();
+					}
+					return result;
+				}
+			}
+			return parseJson(body, parser);
+		} catch (JsonParseException | IllegalStateException e) {
+			throw new IOException("Invalid JSON returned from " + requestUrl, e);
 		}
 	}
 
-	public static int postJsonForResCode(URL requestUrl, JsonElement requestData) throws IOException {
-		HttpURLConnection conn = (HttpURLConnection) requestUrl.openConnection();
-		conn.setDoOutput(true);
-		conn.setRequestProperty("User-Agent", Jumploader.USER_AGENT);
-		conn.setRequestProperty("Content-Type", "application/json");
-		conn.setRequestProperty("Accept", "application/json");
-
-		try (OutputStream req = conn.getOutputStream(); OutputStreamWriter writer = new OutputStreamWriter(req)) {
-			Gson gson = new Gson();
-			gson.toJson(requestData, writer);
+	private static <R> R parseJson(InputStream in, JsonStreamParser<R> parser) throws IOException {
+		try (JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+			return parser.parse(reader);
 		}
+	}
 
-		return conn.getResponseCode();
+	/**
+	 * Enables caching of JSON responses in the given cache, or disables it if the cache is null
+	 */
+	public static void setHttpCache(HttpCache cache) {
+		httpCache = cache;
 	}
 
-	public static String getString(URL requestUrl) throws IOException {
-		URLConnection conn = requestUrl.openConnection();
-		conn.setRequestProperty("User-Agent", Jumploader.USER_AGENT);
-		conn.setRequestProperty("Accept", "text/plain");
+	public static int postJsonForResCode(URL requestUrl, JsonElement requestData) throws IOException {
+		Gson gson = new Gson();
+		byte[] body = gson.toJson(requestData).getBytes(StandardCharsets.UTF_8);
+		TransportRequest request = TransportRequest.post(requestUrl, body)
+			.header("Content-Type", "application/json")
+			.header("Accept", "application/json");
+		try (TransportResponse res = TRANSPORT.send(request)) {
+			return res.getStatusCode();
+		}
+	}
 
+	public static String getString(URL requestUrl) throws IOException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		byte[] buffer = new byte[1024];
-		try (InputStream res = conn.getInputStream()) {
-			int n;
-			while ((n = res.read(buffer, 0, 1024)) != -1) {
-				baos.write(buffer, 0, n);
+		try (HostConnectionLimiter.Permit ignored = HostConnectionLimiter.acquire(requestUrl, HostConnectionLimiter.Priority.METADATA);
+			 TransportResponse conn = TRANSPORT.send(TransportRequest.get(requestUrl).header("Accept", "text/plain"))) {
+			byte[] buffer = new byte[1024];
+			try (InputStream res = conn.getBody()) {
+				int n;
+				while ((n = res.read(buffer, 0, 1024)) != -1) {
+					baos.write(buffer, 0, n);
+				}
 			}
 		}
 		return baos.toString(StandardCharsets.UTF_8.name());
@@ -74,4 +172,86 @@ public class RequestUtils {
 	public static String getSha1Hash(URL downloadUrl) throws IOException {
 		return getString(getSha1Url(downloadUrl));
 	}
+
+	/**
+	 * Retrieves the SHA-1 hash of the given URL, checking the memo store first and storing newly retrieved hashes
+	 */
+	public static String getSha1Hash(URL downloadUrl, HashMemoStore memoStore) throws IOException {
+		String hash = memoStore.get(downloadUrl);
+		if (hash != null) {
+			return hash;
+		}
+		hash = getSha1Hash(downloadUrl);
+		memoStore.put(downloadUrl, hash);
+		return hash;
+	}
+
+	/**
+	 * Retrieves the size of the file at the given URL with a HEAD request, returning -1 if the size isn't known
+	 */
+	public static long getContentLength(URL requestUrl) throws IOException {
+		try (HostConnectionLimiter.Permit ignored = HostConnectionLimiter.acquire(requestUrl, HostConnectionLimiter.Priority.METADATA);
+			 TransportResponse res = TRANSPORT.send(TransportRequest.head(requestUrl))) {
+			if (res.getStatusCode() != HttpURLConnection.HTTP_OK) {
+				return -1;
+			}
+			return res.getContentLength();
+		}
+	}
+
+	/**
+	 * Retrieves the size of the file at the given URL, checking the memo store first and storing newly retrieved sizes
+	 */
+	public static long getContentLength(URL requestUrl, HashMemoStore memoStore) throws IOException {
+		long size = memoStore.getSize(requestUrl);
+		if (size > 0) {
+			return size;
+		}
+		size = getContentLength(requestUrl);
+		memoStore.putSize(requestUrl, size);
+		return size;
+	}
+
+	public interface ConcurrentRequest<I, R> {
+		R request(I input) throws IOException;
+	}
+
+	private static final int CONCURRENT_REQUEST_THREADS = 6;
+
+	/**
+	 * Runs a request for each of the given inputs concurrently, returning the results in the same order as the inputs.
+	 * If any request fails, the remaining requests are cancelled and the exception is thrown.
+	 */
+	public static <I, R> List<R> requestConcurrently(List<I> inputs, ConcurrentRequest<I, R> request) throws IOException {
+		if (inputs.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<R> results = new ArrayList<>(Collections.nCopies(inputs.size(), null));
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(CONCURRENT_REQUEST_THREADS, inputs.size()));
+		try {
+			CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+			for (int i = 0; i < inputs.size(); i++) {
+				int index = i;
+				completionService.submit(() -> {
+					results.set(index, request.request(inputs.get(index)));
+					return null;
+				});
+			}
+			for (int i = 0; i < inputs.size(); i++) {
+				try {
+					completionService.take().get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					}
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for requests", e);
+		} finally {
+			executor.shutdownNow();
+		}
+		return results;
+	}
 }
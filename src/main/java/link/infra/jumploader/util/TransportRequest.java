@@ -0,0 +1,58 @@
+package link.infra.jumploader.util;
+
+import link.infra.jumploader.Jumploader;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A HTTP request to be sent by a HttpTransport
+ */
+public class TransportRequest {
+	public final URL url;
+	public final String method;
+	public final byte[] body;
+	public final Map<String, String> headers = new LinkedHashMap<>();
+	// Timeouts in milliseconds, where 0 is no timeout. The read timeout is the longest time to wait for each read.
+	public int connectTimeoutMillis = defaultConnectTimeoutMillis;
+	public int readTimeoutMillis = defaultReadTimeoutMillis;
+	// If false, the read timeout is only applied until the response headers are received where the transport doesn't
+	// time out reads itself - used for downloads, which are restarted by the stall detection instead
+	public boolean timeoutBodyReads = true;
+
+	private static volatile int defaultConnectTimeoutMillis = 15000;
+	private static volatile int defaultReadTimeoutMillis = 30000;
+
+	private TransportRequest(URL url, String method, byte[] body) {
+		this.url = url;
+		this.method = method;
+		this.body = body;
+		headers.put("User-Agent", Jumploader.USER_AGENT);
+	}
+
+	/**
+	 * Sets the timeouts used by requests created after this is called, in milliseconds
+	 */
+	public static void setDefaultTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+		defaultConnectTimeoutMillis = connectTimeoutMillis;
+		defaultReadTimeoutMillis = readTimeoutMillis;
+	}
+
+	public static TransportRequest get(URL url) {
+		return new TransportRequest(url, "GET", null);
+	}
+
+	public static TransportRequest head(URL url) {
+		return new TransportRequest(url, "HEAD", null);
+	}
+
+	public static TransportRequest post(URL url, byte[] body) {
+		return new TransportRequest(url, "POST", body);
+	}
+
+	public TransportRequest header(String name, String value) {
+		headers.put(name, value);
+		return this;
+	}
+}
@@ -0,0 +1,46 @@
+package link.infra.jumploader.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The response to a request sent by a HttpTransport. Closing the response closes the body, and allows the connection
+ * to be reused.
+ */
+public interface TransportResponse extends Closeable {
+	int getStatusCode() throws IOException;
+
+	/**
+	 * Gets the first value of the given header, or null if it isn't present
+	 */
+	String getHeader(String name);
+
+	/**
+	 * Gets the length of the body from the Content-Length header, or -1 if it isn't known
+	 */
+	default long getContentLength() {
+		String contentLength = getHeader("Content-Length");
+		if (contentLength == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(contentLength.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Gets the body of the response - like URLConnection, an IOException is thrown if the server returned an error
+	 */
+	InputStream getBody() throws IOException;
+
+	/**
+	 * Aborts the response without reading the rest of the body, so the connection isn't reused. Can be called from
+	 * another thread to cancel a request that is being read.
+	 */
+	default void abort() throws IOException {
+		close();
+	}
+}
@@ -0,0 +1,107 @@
+package link.infra.jumploader.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.Map;
+
+/**
+ * Sends requests using URLConnection, which reuses HTTP/1.1 connections with keep-alive as long as each response body
+ * is read fully and closed. Also supports non-HTTP URLs (e.g. file URLs), which are treated as always returning 200.
+ */
+public class URLConnectionTransport implements HttpTransport {
+	@Override
+	public TransportResponse send(TransportRequest request) throws IOException {
+		URLConnection conn = request.url.openConnection();
+		conn.setConnectTimeout(request.connectTimeoutMillis);
+		conn.setReadTimeout(request.readTimeoutMillis);
+		for (Map.Entry<String, String> header : request.headers.entrySet()) {
+			conn.setRequestProperty(header.getKey(), header.getValue());
+		}
+		if (conn instanceof HttpURLConnection) {
+			((HttpURLConnection) conn).setRequestMethod(request.method);
+		}
+		if (request.body != null) {
+			conn.setDoOutput(true);
+			try (OutputStream out = conn.getOutputStream()) {
+				out.write(request.body);
+			}
+		}
+		return new Response(conn, request.method);
+	}
+
+	private static class Response implements TransportResponse {
+		private final URLConnection conn;
+		private final String method;
+		private InputStream body;
+		// Set once the status code has been read, or -1
+		private int statusCode = -1;
+
+		private Response(URLConnection conn, String method) {
+			this.conn = conn;
+			this.method = method;
+		}
+
+		@Override
+		public int getStatusCode() throws IOException {
+			if (conn instanceof HttpURLConnection) {
+				statusCode = ((HttpURLConnection) conn).getResponseCode();
+				return statusCode;
+			}
+			return HttpURLConnection.HTTP_OK;
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return conn.getHeaderField(name);
+		}
+
+		@Override
+		public long getContentLength() {
+			return conn.getContentLengthLong();
+		}
+
+		@Override
+		public InputStream getBody() throws IOException {
+			if (body == null) {
+				body = conn.getInputStream();
+			}
+			return body;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (body != null) {
+				body.close();
+			} else if (conn instanceof HttpURLConnection) {
+				HttpURLConnection httpConn = (HttpURLConnection) conn;
+				if ("HEAD".equals(method) || statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+					// There is no body to read, so the connection can be reused - error responses use the error stream
+					try {
+						InputStream in = httpConn.getResponseCode() >= 400 ? httpConn.getErrorStream() : httpConn.getInputStream();
+						if (in != null) {
+							in.close();
+						}
+						return;
+					} catch (IOException ignored) {
+						// Disconnect instead
+					}
+				}
+				// The body wasn't read, so the connection can't be reused
+				httpConn.disconnect();
+			}
+		}
+
+		@Override
+		public void abort() throws IOException {
+			// Closing the body would read the rest of it so the connection can be reused, so close the socket instead
+			if (conn instanceof HttpURLConnection) {
+				((HttpURLConnection) conn).disconnect();
+			} else if (body != null) {
+				body.close();
+			}
+		}
+	}
+}
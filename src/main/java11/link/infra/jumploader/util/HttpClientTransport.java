@@ -0,0 +1,176 @@
+package link.infra.jumploader.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends requests using java.net.http.HttpClient, which negotiates HTTP/2 where the server supports it so that
+ * concurrent requests to the same host are multiplexed over one TLS connection. This class is only in the Java 11
+ * version of the multi-release jar; non-HTTP URLs are sent with URLConnectionTransport.
+ */
+public class HttpClientTransport implements HttpTransport {
+	// HttpClient only sets the connect timeout per client, so there is a client for each connect timeout - requests use
+	// the configured default, so in practice only one client is created
+	private final Map<Integer, HttpClient> clients = new ConcurrentHashMap<>();
+	private final URLConnectionTransport fallbackTransport = new URLConnectionTransport();
+
+	private static final ScheduledExecutorService READ_TIMEOUT_EXECUTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Jumploader read timeout");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private HttpClient getClient(int connectTimeoutMillis) {
+		return clients.computeIfAbsent(connectTimeoutMillis, timeout -> {
+			HttpClient.Builder builder = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NORMAL);
+			if (timeout > 0) {
+				builder.connectTimeout(Duration.ofMillis(timeout));
+			}
+			return builder.build();
+		});
+	}
+
+	@Override
+	public TransportResponse send(TransportRequest request) throws IOException {
+		String protocol = request.url.getProtocol();
+		if (!"http".equals(protocol) && !"https".equals(protocol)) {
+			return fallbackTransport.send(request);
+		}
+
+		HttpRequest.Builder builder;
+		try {
+			builder = HttpRequest.newBuilder(request.url.toURI());
+		} catch (URISyntaxException e) {
+			throw new IOException("Invalid request URL " + request.url, e);
+		}
+		for (Map.Entry<String, String> header : request.headers.entrySet()) {
+			builder.header(header.getKey(), header.getValue());
+		}
+		// HttpClient has no read timeout, so this limits the time until the response headers are received - reads of the
+		// body are timed out by TimeoutInputStream
+		if (request.connectTimeoutMillis > 0 && request.readTimeoutMillis > 0) {
+			builder.timeout(Duration.ofMillis((long) request.connectTimeoutMillis + request.readTimeoutMillis));
+		}
+		builder.method(request.method, request.body != null ?
+			HttpRequest.BodyPublishers.ofByteArray(request.body) : HttpRequest.BodyPublishers.noBody());
+
+		try {
+			HttpResponse<InputStream> response = getClient(request.connectTimeoutMillis).send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+			return new Response(response, request.timeoutBodyReads ? request.readTimeoutMillis : 0);
+		} catch (HttpTimeoutException e) {
+			throw new SocketTimeoutException("Timed out waiting for a response from " + request.url);
+		} catch (InterruptedException e) {
+			InterruptedIOException ex = new InterruptedIOException("Interrupted while requesting " + request.url);
+			ex.initCause(e);
+			throw ex;
+		}
+	}
+
+	private static class Response implements TransportResponse {
+		private final HttpResponse<InputStream> response;
+		private final InputStream body;
+
+		private Response(HttpResponse<InputStream> response, int readTimeoutMillis) {
+			this.response = response;
+			body = readTimeoutMillis > 0 ? new TimeoutInputStream(response.body(), readTimeoutMillis, response.uri().toString()) : response.body();
+		}
+
+		@Override
+		public int getStatusCode() {
+			return response.statusCode();
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return response.headers().firstValue(name).orElse(null);
+		}
+
+		@Override
+		public InputStream getBody() throws IOException {
+			if (response.statusCode() >= 400) {
+				response.body().close();
+				throw new IOException("Server returned HTTP response code: " + response.statusCode() + " for URL: " + response.uri());
+			}
+			return body;
+		}
+
+		@Override
+		public void close() throws IOException {
+			response.body().close();
+		}
+	}
+
+	/**
+	 * Fails reads that don't receive any data within the timeout with a SocketTimeoutException, like the read timeout of
+	 * URLConnection. The stream is closed when a read times out, which makes the blocked read return.
+	 */
+	private static class TimeoutInputStream extends FilterInputStream {
+		private final long timeoutMillis;
+		private final String url;
+		private volatile boolean timedOut = false;
+
+		private TimeoutInputStream(InputStream in, long timeoutMillis, String url) {
+			super(in);
+			this.timeoutMillis = timeoutMillis;
+			this.url = url;
+		}
+
+		private ScheduledFuture<?> startTimeout() throws SocketTimeoutException {
+			checkTimedOut();
+			return READ_TIMEOUT_EXECUTOR.schedule(() -> {
+				timedOut = true;
+				try {
+					in.close();
+				} catch (IOException ignored) {
+					// The read fails anyway
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+
+		private void checkTimedOut() throws SocketTimeoutException {
+			// Once the stream has been closed by the timeout it may appear to have ended, so it can't be read any more
+			if (timedOut) {
+				throw new SocketTimeoutException("Timed out reading the response from " + url);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			ScheduledFuture<?> timeout = startTimeout();
+			try {
+				return in.read();
+			} finally {
+				timeout.cancel(false);
+				checkTimedOut();
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			ScheduledFuture<?> timeout = startTimeout();
+			try {
+				return in.read(b, off, len);
+			} finally {
+				timeout.cancel(false);
+				checkTimedOut();
+			}
+		}
+	}
+}